@@ -0,0 +1,127 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The audit events matching a query, fetched from Solr a page at a time as they are iterated
+ * over, so that only one page of events is ever held in memory.
+ *
+ * The pages are read with cursorMark deep paging, which needs the query to be sorted on the
+ * uniqueKey of the core as well.  If the core refuses the cursor (because the configured unique
+ * key is not the one of its schema, or Solr is too old) the events are paged through with
+ * start and rows instead.
+ */
+public class AuditEventCursor implements Iterator<ResourceSyncEvent>
+{
+    private static Logger log = Logger.getLogger(AuditEventCursor.class);
+
+    private SolrServer solr;
+    private SolrQuery query;
+    private String uniqueKey;
+    private boolean useCursor;
+
+    private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    private int start = 0;
+    private boolean exhausted = false;
+    private Iterator<SolrDocument> page = null;
+
+    /**
+     * @param solr      the audit core
+     * @param query     the query, sorted on the date of the events, with the fields to fetch
+     * @param pageSize  the number of events to fetch at a time
+     * @param uniqueKey the uniqueKey of the core, or null to page with start and rows
+     */
+    public AuditEventCursor(SolrServer solr, SolrQuery query, int pageSize, String uniqueKey)
+    {
+        this.solr = solr;
+        this.query = query.getCopy();
+        this.query.setRows(Math.max(1, pageSize));
+        this.useCursor = uniqueKey != null && !"".equals(uniqueKey.trim());
+        if (this.useCursor)
+        {
+            this.uniqueKey = uniqueKey.trim();
+            this.query.addSort(this.uniqueKey, SolrQuery.ORDER.asc);
+        }
+    }
+
+    public boolean hasNext()
+    {
+        while ((this.page == null || !this.page.hasNext()) && !this.exhausted)
+        {
+            this.fetch();
+        }
+        return this.page != null && this.page.hasNext();
+    }
+
+    public ResourceSyncEvent next()
+    {
+        if (!this.hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return ResourceSyncAuditService.toEvent(this.page.next());
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fetch()
+    {
+        QueryResponse response;
+        if (this.useCursor)
+        {
+            this.query.set(CursorMarkParams.CURSOR_MARK_PARAM, this.cursorMark);
+            try
+            {
+                response = this.solr.query(this.query);
+            }
+            catch (SolrServerException | RuntimeException e)
+            {
+                if (!CursorMarkParams.CURSOR_MARK_START.equals(this.cursorMark))
+                {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+                log.warn("Unable to page through the audit events with a cursor, using start and rows: " + e.getMessage());
+                this.useCursor = false;
+                this.query.remove(CursorMarkParams.CURSOR_MARK_PARAM);
+                this.query.removeSort(this.uniqueKey);
+                return;
+            }
+            String next = response.getNextCursorMark();
+            // the cursor does not move once every event has been returned
+            this.exhausted = next == null || next.equals(this.cursorMark);
+            this.cursorMark = next;
+        }
+        else
+        {
+            this.query.setStart(this.start);
+            try
+            {
+                response = this.solr.query(this.query);
+            }
+            catch (SolrServerException e)
+            {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            this.start += response.getResults().size();
+            this.exhausted = response.getResults().isEmpty() || this.start >= response.getResults().getNumFound();
+        }
+        this.page = response.getResults().iterator();
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The audit documents waiting to be sent to the resourcesync Solr core, so that the thread
+ * producing the events (usually the one submitting or importing the content) does not wait for a
+ * round trip to Solr for each of them.
+ *
+ * A background thread sends the documents in batches of at most batchSize, waiting no more than
+ * lingerMillis for a batch to fill up, and asks Solr to commit them within commitWithin
+ * milliseconds.  The queue holds at most queueSize documents: once it is full, adding a document
+ * waits for the background thread to make room.  {@link #close()} sends whatever is left; it is
+ * called when the DSpace services are shut down, or when the JVM exits.  A batch which Solr
+ * rejects is logged and dropped, as the events were before.
+ */
+public class AuditEventQueue implements Closeable
+{
+    private static Logger log = Logger.getLogger(AuditEventQueue.class);
+
+    private SolrServer solr;
+    private BlockingQueue<SolrInputDocument> queue;
+    private int batchSize;
+    private long lingerMillis;
+    private int commitWithin;
+
+    private Thread flusher;
+    private Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    /**
+     * @param solr          the audit core
+     * @param queueSize     the number of documents which may wait to be sent
+     * @param batchSize     the number of documents sent at a time
+     * @param lingerMillis  how long to wait for a batch to fill up
+     * @param commitWithin  the time within which Solr should commit the documents, or -1 to leave
+     *                      it to the configuration of the core
+     */
+    public AuditEventQueue(SolrServer solr, int queueSize, int batchSize, long lingerMillis, int commitWithin)
+    {
+        this.solr = solr;
+        this.queue = new ArrayBlockingQueue<SolrInputDocument>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.commitWithin = commitWithin;
+
+        this.flusher = new Thread(() -> this.run(), "resourcesync-audit");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+
+        this.shutdownHook = new Thread(() -> this.close(), "resourcesync-audit-shutdown");
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    /**
+     * @return a queue as configured, or null if the events are to be sent one at a time
+     */
+    public static AuditEventQueue getConfigured(SolrServer solr)
+    {
+        if (!ConfigurationManager.getBooleanProperty("resourcesync", "audit.async", true))
+        {
+            return null;
+        }
+        int queueSize = ConfigurationManager.getIntProperty("resourcesync", "audit.queue-size", 10000);
+        int batchSize = ConfigurationManager.getIntProperty("resourcesync", "audit.batch-size", 500);
+        long linger = ConfigurationManager.getLongProperty("resourcesync", "audit.linger", 1000L);
+        int commitWithin = ConfigurationManager.getIntProperty("resourcesync", "audit.commit-within", 10000);
+        return new AuditEventQueue(solr, queueSize, batchSize, linger, commitWithin <= 0 ? -1 : commitWithin);
+    }
+
+    /**
+     * Queue the document, waiting for room if the queue is full
+     *
+     * @return false if the queue has been closed, in which case the document is not sent
+     */
+    public boolean add(SolrInputDocument document)
+    {
+        try
+        {
+            while (!this.closed)
+            {
+                if (this.queue.offer(document, 100, TimeUnit.MILLISECONDS))
+                {
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Send what is left in the queue and stop the background thread
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+        }
+        try
+        {
+            this.flusher.join(TimeUnit.MINUTES.toMillis(1));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (!this.queue.isEmpty())
+        {
+            log.warn(this.queue.size() + " audit events could not be sent to Solr before the shutdown");
+        }
+        if (Thread.currentThread() != this.shutdownHook)
+        {
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            }
+            catch (IllegalStateException e)
+            {
+                // the JVM is already shutting down
+            }
+        }
+    }
+
+    private void run()
+    {
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(this.batchSize);
+        while (true)
+        {
+            try
+            {
+                SolrInputDocument first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    if (this.closed)
+                    {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+
+                // wait a little for more, unless the queue is being emptied for good
+                long deadline = System.currentTimeMillis() + this.lingerMillis;
+                while (batch.size() < this.batchSize)
+                {
+                    long wait = this.closed ? 0 : deadline - System.currentTimeMillis();
+                    SolrInputDocument next = wait > 0 ? this.queue.poll(wait, TimeUnit.MILLISECONDS) : this.queue.poll();
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // only the close may stop the thread, so that nothing queued is lost
+            }
+
+            if (!batch.isEmpty())
+            {
+                this.send(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<SolrInputDocument> batch)
+    {
+        try
+        {
+            this.solr.add(batch, this.commitWithin);
+        }
+        catch (Exception e)
+        {
+            log.error("Unable to send " + batch.size() + " audit events to Solr: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.IOUtils;
+import org.dspace.content.Bitstream;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads bitstreams from the assetstore into memory on a pool of threads, ahead of the thread
+ * writing them into a zip, so that waiting for the storage overlaps with compressing the files
+ * before them instead of alternating with it.
+ *
+ * The bitstreams being read or waiting to be written may not take more than maxBytes in total: a
+ * bitstream which does not fit in what is left is not read ahead, and one bigger than maxBytes
+ * never is.  The space of a bitstream is handed back with {@link #release(long)} once it has been
+ * written.  Every thread has its own DSpace context.
+ */
+public class BitstreamReadAhead implements Closeable
+{
+    private ExecutorService executor;
+    private long maxBytes;
+    private long reserved = 0;
+    private ThreadLocal<Context> workerContext = new ThreadLocal<Context>();
+    private List<Context> contexts = Collections.synchronizedList(new ArrayList<Context>());
+
+    /**
+     * @param threads   the number of threads reading the bitstreams
+     * @param maxBytes  the total size of the bitstreams held in memory
+     */
+    public BitstreamReadAhead(int threads, long maxBytes)
+    {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return a read-ahead stage as configured, or null if the bitstreams are to be read when
+     * they are written
+     */
+    public static BitstreamReadAhead getConfigured()
+    {
+        int threads = ConfigurationManager.getIntProperty("resourcesync", "bitstream.read-ahead.threads", 0);
+        long maxSize = ConfigurationManager.getLongProperty("resourcesync", "bitstream.read-ahead.max-size", 64L);
+        if (threads <= 0 || maxSize <= 0)
+        {
+            return null;
+        }
+        return new BitstreamReadAhead(threads, maxSize * 1024 * 1024);
+    }
+
+    /**
+     * @return true if a bitstream of the given size may ever be read ahead
+     */
+    public boolean accepts(long size)
+    {
+        return size >= 0 && size <= this.maxBytes;
+    }
+
+    /**
+     * Start reading the bitstream, if it fits in what is left of the space; the digests of the
+     * {@link DigestCache} are computed from what has been read, unless they are known already
+     *
+     * @param size  the size of the bitstream
+     * @return the read, which completes with the content of the bitstream, or null if there is no
+     * space for it at the moment
+     */
+    public Future<byte[]> fetch(final int bitstreamID, final String internalID, final long size)
+    {
+        if (!this.accepts(size) || !this.reserve(size))
+        {
+            return null;
+        }
+        return this.executor.submit(() -> {
+            Context context = workerContext.get();
+            if (context == null)
+            {
+                context = new Context();
+                workerContext.set(context);
+                contexts.add(context);
+            }
+
+            Bitstream bitstream = Bitstream.find(context, bitstreamID);
+            InputStream is = bitstream.retrieve();
+            try
+            {
+                byte[] content = new byte[(int) size];
+                int len = IOUtils.read(is, content);
+                if (len == content.length && is.read() != -1)
+                {
+                    throw new IOException("Bitstream " + bitstreamID + " is bigger than its recorded size");
+                }
+                DigestCache digests = DigestCache.getInstance();
+                DigestCache.Digester digester = digests == null ? null : digests.digester(bitstreamID, internalID);
+                if (digester != null)
+                {
+                    digester.update(content, 0, len);
+                    digester.done();
+                }
+                return len == content.length ? content : Arrays.copyOf(content, len);
+            }
+            finally
+            {
+                is.close();
+                context.clearCache();
+            }
+        });
+    }
+
+    /**
+     * Hand back the space of a bitstream which has been written out, or whose read failed
+     */
+    public synchronized void release(long size)
+    {
+        this.reserved -= size;
+    }
+
+    private synchronized boolean reserve(long size)
+    {
+        if (this.reserved + size > this.maxBytes)
+        {
+            return false;
+        }
+        this.reserved += size;
+        return true;
+    }
+
+    public void close()
+            throws IOException
+    {
+        this.executor.shutdownNow();
+        try
+        {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Context context : this.contexts)
+        {
+            context.abort();
+        }
+    }
+}
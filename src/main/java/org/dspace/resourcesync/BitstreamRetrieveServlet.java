@@ -25,7 +25,6 @@ import org.dspace.content.Bundle;
 import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Context;
 import org.dspace.core.LogManager;
-import org.dspace.core.Utils;
 import org.dspace.usage.UsageEvent;
 import org.dspace.utils.DSpace;
 
@@ -167,8 +166,14 @@ public class BitstreamRetrieveServlet extends HttpServlet
     				setBitstreamDisposition(bitstream.getName(), request, response);
     			}
 
-    			Utils.bufferedCopy(is, response.getOutputStream());
-    			is.close();
+    			try
+    			{
+    				CopyBuffers.copy(is, response.getOutputStream());
+    			}
+    			finally
+    			{
+    				is.close();
+    			}
     			response.getOutputStream().flush();
     		}
     		else
@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+import org.dspace.browse.BrowseEngine;
+import org.dspace.browse.BrowseException;
+import org.dspace.browse.BrowseIndex;
+import org.dspace.browse.BrowseInfo;
+import org.dspace.browse.BrowserScope;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.core.Context;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enumerates the items in a scope through the item browse index, using offset paging.
+ */
+public class BrowseItemEnumerator implements ItemEnumerator
+{
+    private static Logger log = Logger.getLogger(BrowseItemEnumerator.class);
+
+    private Context context;
+    private BrowseEngine be;
+    private BrowserScope bs;
+    private int offset = 0;
+    private boolean exhausted = false;
+
+    public BrowseItemEnumerator(Context context, DSpaceObject scope, int pageSize)
+    {
+        this.context = context;
+        try
+        {
+            this.be = new BrowseEngine(context);
+            this.bs = new BrowserScope(context);
+            this.bs.setBrowseIndex(BrowseIndex.getItemBrowseIndex());
+            this.bs.setResultsPerPage(pageSize);
+            if (scope != null)
+            {
+                this.bs.setBrowseContainer(scope);
+            }
+        }
+        catch (BrowseException e)
+        {
+            log.error(e.getMessage(), e);
+            this.exhausted = true;
+        }
+    }
+
+    public List<Integer> nextPage()
+            throws SQLException
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        if (this.exhausted)
+        {
+            return ids;
+        }
+
+        try
+        {
+            BrowseInfo binfo = this.be.browse(this.bs);
+            this.exhausted = binfo.isLast();
+            for (Item it : binfo.getItemResults(this.context))
+            {
+                ids.add(it.getID());
+            }
+
+            // the next offset is already absolute
+            this.offset = binfo.getNextOffset();
+            this.bs.setOffset(this.offset);
+        }
+        catch (BrowseException e)
+        {
+            log.error(e.getMessage(), e);
+            this.exhausted = true;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of in-memory output buffers, so that rendering many small documents (such as metadata
+ * exports) does not allocate and grow a new buffer every time.
+ *
+ * The pool never blocks: a new buffer is created when none is free.  At most maxRetained buffers
+ * are kept once released, and buffers which have grown beyond maxRetainedBytes are dropped rather
+ * than kept around.
+ */
+public class BufferPool
+{
+    private ConcurrentLinkedQueue<ByteArrayOutputStream> free = new ConcurrentLinkedQueue<ByteArrayOutputStream>();
+    private AtomicInteger retained = new AtomicInteger(0);
+    private int maxRetained;
+    private int maxRetainedBytes;
+
+    public BufferPool(int maxRetained, int maxRetainedBytes)
+    {
+        this.maxRetained = maxRetained;
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * @return an empty buffer, to be handed back with {@link #release(ByteArrayOutputStream)}
+     */
+    public ByteArrayOutputStream acquire()
+    {
+        ByteArrayOutputStream buffer = this.free.poll();
+        if (buffer == null)
+        {
+            return new ByteArrayOutputStream(8192);
+        }
+        this.retained.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(ByteArrayOutputStream buffer)
+    {
+        if (buffer == null || buffer.size() > this.maxRetainedBytes)
+        {
+            return;
+        }
+        if (this.retained.incrementAndGet() > this.maxRetained)
+        {
+            this.retained.decrementAndGet();
+            return;
+        }
+        buffer.reset();
+        this.free.offer(buffer);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+/**
+ * Keeps the memory used by a long generation run bounded, by releasing the objects that pile up in
+ * the DSpace context cache as the archive is traversed.
+ *
+ * When bounded-memory is enabled the cache is cleared after every page of items (or batch of
+ * events).  If a heap budget is also given, the cache is only cleared once the heap in use goes
+ * over it, so that it still saves some queries while memory allows.
+ */
+public class ContextCacheEvictor
+{
+    private static Logger log = Logger.getLogger(ContextCacheEvictor.class);
+
+    private Context context;
+    private boolean enabled;
+    private long heapBudget;
+
+    public ContextCacheEvictor(Context context)
+    {
+        this.context = context;
+        this.enabled = ConfigurationManager.getBooleanProperty("resourcesync", "bounded-memory", false);
+        this.heapBudget = ConfigurationManager.getLongProperty("resourcesync", "bounded-memory.heap-budget", 0L) * 1024L * 1024L;
+    }
+
+    /**
+     * To be called once a page of items or a batch of events has been completely written out, and
+     * none of the objects loaded for it are needed any more
+     */
+    public void pageDone()
+    {
+        if (!this.enabled)
+        {
+            return;
+        }
+        if (this.heapBudget > 0 && this.usedHeap() < this.heapBudget)
+        {
+            return;
+        }
+
+        int size = this.context.getCacheSize();
+        this.context.clearCache();
+        if (log.isDebugEnabled())
+        {
+            log.debug("Released " + size + " cached objects, heap in use is now " + (this.usedHeap() / (1024 * 1024)) + "MB");
+        }
+    }
+
+    private long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.core.ConfigurationManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The buffers used to copy bitstreams, exports and documents around, shared by the whole module so
+ * that a dump of many small files or a busy servlet does not allocate a new buffer for every copy.
+ *
+ * Like {@link BufferPool} the pool never blocks: a new buffer is allocated when none is free, and
+ * at most maxRetained buffers are kept once released.  The numbers of buffers handed out and of
+ * buffers allocated are counted, so that the effect of the pool can be measured.
+ */
+public class CopyBuffers
+{
+    private static CopyBuffers instance = null;
+
+    private ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+    private AtomicInteger retained = new AtomicInteger(0);
+    private int bufferSize;
+    private int maxRetained;
+
+    private AtomicLong acquired = new AtomicLong(0);
+    private AtomicLong allocated = new AtomicLong(0);
+
+    /**
+     * @return the pool configured in resourcesync.cfg
+     */
+    public static synchronized CopyBuffers getInstance()
+    {
+        if (instance == null)
+        {
+            int bufferSize = ConfigurationManager.getIntProperty("resourcesync", "copy.buffer-size", 102400);
+            int maxRetained = ConfigurationManager.getIntProperty("resourcesync", "copy.pool-size", 32);
+            instance = new CopyBuffers(bufferSize, maxRetained);
+        }
+        return instance;
+    }
+
+    /**
+     * @param bufferSize    the size of every buffer
+     * @param maxRetained   the number of free buffers to keep
+     */
+    public CopyBuffers(int bufferSize, int maxRetained)
+    {
+        this.bufferSize = Math.max(1024, bufferSize);
+        this.maxRetained = maxRetained;
+    }
+
+    /**
+     * Copy everything from the input stream to the output stream, neither of which is closed
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out)
+            throws IOException
+    {
+        return getInstance().copyStream(in, out);
+    }
+
+    /**
+     * @return a buffer, to be handed back with {@link #release(byte[])}
+     */
+    public byte[] acquire()
+    {
+        this.acquired.incrementAndGet();
+        byte[] buffer = this.free.poll();
+        if (buffer == null)
+        {
+            this.allocated.incrementAndGet();
+            return new byte[this.bufferSize];
+        }
+        this.retained.decrementAndGet();
+        return buffer;
+    }
+
+    public void release(byte[] buffer)
+    {
+        if (buffer == null || buffer.length != this.bufferSize)
+        {
+            return;
+        }
+        if (this.retained.incrementAndGet() > this.maxRetained)
+        {
+            this.retained.decrementAndGet();
+            return;
+        }
+        this.free.offer(buffer);
+    }
+
+    public long copyStream(InputStream in, OutputStream out)
+            throws IOException
+    {
+        byte[] buffer = this.acquire();
+        try
+        {
+            long total = 0;
+            int len = in.read(buffer);
+            while (len != -1)
+            {
+                out.write(buffer, 0, len);
+                total += len;
+                len = in.read(buffer);
+            }
+            return total;
+        }
+        finally
+        {
+            this.release(buffer);
+        }
+    }
+
+    /**
+     * @return the number of buffers handed out so far
+     */
+    public long getAcquired()
+    {
+        return this.acquired.get();
+    }
+
+    /**
+     * @return the number of buffers allocated so far, as the pool had none free
+     */
+    public long getAllocated()
+    {
+        return this.allocated.get();
+    }
+
+    /**
+     * @return the number of bytes allocated for buffers so far
+     */
+    public long getAllocatedBytes()
+    {
+        return this.allocated.get() * this.bufferSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "copy buffers: " + this.getAcquired() + " acquired, " + this.getAllocated() + " allocated (" +
+                this.getAllocatedBytes() + " bytes)";
+    }
+}
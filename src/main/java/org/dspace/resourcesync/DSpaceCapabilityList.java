@@ -29,6 +29,7 @@ public class DSpaceCapabilityList
     private boolean changeDump;
     private String latestChangeList;
     private String latestChangeDump;
+    private boolean resourceListIndex = false;
 
     public DSpaceCapabilityList(Context context, boolean resourceList, boolean changeListArchive, boolean resourceDump, boolean changeList,
     		boolean changeDump,String latestChangeList,String latestChangeDump,UrlManager um)
@@ -49,10 +50,28 @@ public class DSpaceCapabilityList
         this.latestChangeDump = latestChangeDump;
     }
 
+    public boolean isResourceListIndex()
+    {
+        return resourceListIndex;
+    }
+
+    /**
+     * Point to the resource list index rather than the resource list, for resource lists which
+     * have been split over several documents
+     */
+    public void setResourceListIndex(boolean resourceListIndex)
+    {
+        this.resourceListIndex = resourceListIndex;
+    }
+
     public void serialise(OutputStream out)
             throws IOException
     {
-        String rlUrl = this.resourceList ? this.um.resourceList() : null;
+        String rlUrl = null;
+        if (this.resourceList)
+        {
+            rlUrl = this.resourceListIndex ? this.um.resourceListIndex() : this.um.resourceList();
+        }
         String claUrl = this.changeListArchive ? this.um.changeListArchive() : null;
         String rdUrl = this.resourceDump ? this.um.resourceDump() : null;
         String rsdUrl = this.um.resourceSyncDescription();
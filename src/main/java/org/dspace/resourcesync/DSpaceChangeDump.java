@@ -39,7 +39,7 @@ public class DSpaceChangeDump extends DSpaceResourceDocument
 	}
 
 
-	public void serialiseChangeDump(String rdDir, UrlManager um,List<ResourceSyncEvent> rseList)
+	public void serialiseChangeDump(String rdDir, UrlManager um,Iterable<ResourceSyncEvent> rseList)
 			throws IOException, SQLException
 	{
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd-HHmmss");
@@ -49,7 +49,7 @@ public class DSpaceChangeDump extends DSpaceResourceDocument
 		DSpaceChangeDumpZip drl = new DSpaceChangeDumpZip(this.context,rdFile);
 		drl.serialise(um,rseList); // no output stream required
 	}
-	public synchronized void serialiseChangeDump(String handle,UrlManager um,List<ResourceSyncEvent> rseList,OutputStream os)
+	public synchronized void serialiseChangeDump(String handle,UrlManager um,Iterable<ResourceSyncEvent> rseList,OutputStream os)
 			throws IOException, SQLException
 	{
 		DSpaceChangeDumpZip dcl = new DSpaceChangeDumpZip(this.context,os);
@@ -7,27 +7,20 @@ package org.dspace.resourcesync;
 
 
 import org.apache.log4j.Logger;
-import org.dspace.authorize.AuthorizeException;
-import org.dspace.content.Bitstream;
-import org.dspace.content.Collection;
 import org.dspace.content.Item;
-import org.dspace.content.crosswalk.CrosswalkException;
+import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Context;
+import org.openarchives.resourcesync.ResourceList;
 import org.openarchives.resourcesync.ResourceSyncDocument;
 import org.openarchives.resourcesync.URL;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 /**
  * @author Richard Jones
@@ -41,6 +34,10 @@ public class DSpaceChangeDumpZip  extends DSpaceResourceList
 	private ZipOutputStream zosOnTheFly;
 	boolean isOnTheFly = false;
 	private OutputStream baos;
+	private OrderedZipWriter writer;
+	private ZipCompressionPolicy compression;
+	private ParallelZipAssembler assembler = null;
+	private DumpContentIndex contents = null;
     private static Logger log = Logger.getLogger(DSpaceChangeDumpZip.class);
 
 	public DSpaceChangeDumpZip(Context context,String dumpPathFile)
@@ -77,87 +74,132 @@ public class DSpaceChangeDumpZip  extends DSpaceResourceList
    
 
     
-    public void serialise(UrlManager um,List<ResourceSyncEvent> rseList)
+    public void serialise(UrlManager um,Iterable<ResourceSyncEvent> rseList)
             throws SQLException, IOException
     {
-        // first generate the manifest file.  This uses the other overrides in this object
-        // to also copy in the bitstreams and metadata serialisations which are relevant
-        // everything will be added to the zip
-    	if(!isOnTheFly) {
-	        String drlFile = FileNames.changeDumpManifest;
-	        FileOutputStream fos = new FileOutputStream(new File(drlFile));
-	        this.serialise(fos,um,rseList);
-	        
-	        
-	        // incorporate the manifest into the zip
-	        File manifest = new File(drlFile);
-	        FileInputStream is = new FileInputStream(manifest);
-	
-	        this.copyToZip(FileNames.changeDumpManifest, is);
-	
-	        getZos().close();
-	
-	        // get rid of the left over manifest file
-	        manifest.delete();
-    	}
-    	else
-    	{
-    		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			this.serialise(baos, um, rseList);
-			ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-			this.copyToZip(FileNames.resourceDumpManifest, bais);
-    	}
+        // the metadata exports may be rendered concurrently, but the zip is only written by this thread
+        MetadataRenderer renderer = MetadataRenderer.getConfiguredRenderer();
+        int maxPending = ConfigurationManager.getIntProperty("resourcesync", "metadata.render-queue-size", 100);
+        this.compression = ZipCompressionPolicy.getConfigured();
+        this.contents = DumpContentIndex.getConfigured();
+
+        // a zip written to a file can have its entries compressed concurrently
+        int assemblyThreads = ParallelZipAssembler.getConfiguredThreads();
+        BitstreamReadAhead readAhead = null;
+        if (!isOnTheFly && assemblyThreads > 0)
+        {
+            this.assembler = new ParallelZipAssembler(assemblyThreads, this.compression, maxPending);
+            this.writer = new OrderedZipWriter(this.assembler, renderer, this.compression, maxPending);
+        }
+        else
+        {
+            // a single thread compresses, so the bitstreams are read ahead of it
+            readAhead = BitstreamReadAhead.getConfigured();
+            this.writer = new OrderedZipWriter(getZos(), this.context, renderer, this.compression, maxPending);
+            this.writer.setReadAhead(readAhead);
+        }
+        try
+        {
+            this.serialiseDump(um, rseList);
+        }
+        finally
+        {
+            if (renderer != null)
+            {
+                renderer.close();
+            }
+            if (readAhead != null)
+            {
+                readAhead.close();
+            }
+            if (this.assembler != null)
+            {
+                this.assembler.close();
+            }
+        }
     }
 
-
-    private void copyToZip(String entryName, InputStream is)
-            throws IOException
+    private void serialiseDump(UrlManager um,Iterable<ResourceSyncEvent> rseList)
+            throws SQLException, IOException
     {
-        getZos().putNextEntry(new ZipEntry(entryName));
-        byte[] buffer = new byte[102400]; // 100k chunks
-        int len = is.read(buffer);
-        while (len != -1)
+        // the manifest is generated while the files go to the zip, and comes last in it.  This uses
+        // the other overrides in this object to also add the bitstreams and metadata serialisations
+        // which are relevant
+        OutputStream manifest = this.writer.openEntry(FileNames.changeDumpManifest, "application/xml");
+        try
+        {
+            this.serialise(manifest, um, rseList);
+        }
+        finally
         {
-            getZos().write(buffer, 0, len);
-            len = is.read(buffer);
+            manifest.close();
         }
-        getZos().closeEntry();
+        this.writer.flush();
+
+        if (this.assembler != null)
+        {
+            OutputStream out = new FileOutputStream(this.dumpPathFile);
+            boolean written = false;
+            try
+            {
+                this.assembler.writeTo(out);
+                written = true;
+            }
+            finally
+            {
+                out.close();
+                // a zip missing files its manifest lists is not left behind
+                if (!written)
+                {
+                    new File(this.dumpPathFile).delete();
+                }
+            }
+        }
+        else if (!isOnTheFly)
+        {
+            getZos().close();
+        }
+    }
+
+    @Override
+    protected StreamingResourceList createStreamingList(ResourceList header, OutputStream out)
+            throws IOException
+    {
+        // every entry of the manifest is written after its file, with the digests computed while copying it
+        return this.writer.createManifest(header, out);
     }
 
     @Override
-    protected URL addBitstream(Bitstream bitstream, Item item, List<Collection> collections, ResourceSyncDocument rl)
+    protected URL addBitstream(PrefetchedBitstream bitstream, Item item, List<String> collections, ResourceSyncDocument rl)
     {
         URL url = super.addBitstream(bitstream, item, collections, rl);
         String dumppath = this.getPath(item, bitstream, null, false);
         url.setPath(dumppath);
 
+        // a bitstream whose content is in the zip already is pointed at rather than stored again
+        String existing = this.contents == null ? null : this.contents.claim(bitstream, dumppath);
+        if (existing != null)
+        {
+            url.setPath(existing);
+            return url;
+        }
+
         // now actually get the bitstream and stick it in the directory
         try
         {
             String entryName = this.getPath(item, bitstream, null, true);
-            InputStream is = bitstream.retrieve();
-            this.copyToZip(entryName, is);
+            this.writer.addBitstream(entryName, bitstream, url);
         }
         catch (IOException e)
         {
         	log.error(e.getMessage(),e);
 //            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
         }
-        catch (SQLException e)
-        {
-        	log.error(e.getMessage(),e);
-//            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
-        }
-        catch (AuthorizeException e)
-        {
-        	log.error(e.getMessage(),e);
-//            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
-        }
 
         return url;
     }
 
-    private String getPath(Item item, Bitstream bitstream, MetadataFormat format, boolean nativeSeparator)
+    private String getPath(Item item, PrefetchedBitstream bitstream, MetadataFormat format, boolean nativeSeparator)
     {
         String separator = nativeSeparator ? File.separator : "/";
         String itempath = item.getHandle().replace("/", "_");
@@ -180,7 +222,7 @@ public class DSpaceChangeDumpZip  extends DSpaceResourceList
     }
 
     @Override
-    protected URL addMetadata(Item item, MetadataFormat format, List<Bitstream> describes, List<Collection> collections, ResourceSyncDocument rl)
+    protected URL addMetadata(Item item, MetadataFormat format, List<PrefetchedBitstream> describes, List<String> collections, ResourceSyncDocument rl)
     {
         URL url = super.addMetadata(item, format, describes, collections, rl);
         String dumppath = this.getPath(item, null, format, false);
@@ -189,35 +231,16 @@ public class DSpaceChangeDumpZip  extends DSpaceResourceList
         // now actually get the metadata export and stick it in the directory
         try
         {
+            // the export is rendered by the dissemination crosswalk for this prefix, possibly
+            // in another thread, and added to the zip in turn
             String entryName = this.getPath(item, null, format, true);
-            ZipEntry e = new ZipEntry(entryName);
-            getZos().putNextEntry(e);
-
-            // get the dissemination crosswalk for this prefix and get the element for the object
-            MetadataDisseminator.disseminate(item, format.getPrefix(), getZos());
-
-            getZos().closeEntry();
+            this.writer.addMetadata(entryName, item, format.getPrefix(), format.getMimetype());
         }
         catch (IOException e)
         {
         	log.error(e.getMessage(),e);
 //            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
         }
-        catch (SQLException e)
-        {
-        	log.error(e.getMessage(),e);
-//            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
-        }
-        catch (AuthorizeException e)
-        {
-        	log.error(e.getMessage(),e);
-//            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
-        }
-        catch (CrosswalkException e)
-        {
-        	log.error(e.getMessage(),e);
-//            throw new RuntimeException(e); // FIXME: not so good, probably best to have the method sig support the error
-        }
 
         return url;
     }
@@ -5,11 +5,9 @@
  */
 package org.dspace.resourcesync;
 
-import org.dspace.content.Bitstream;
-import org.dspace.content.Collection;
-import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.resourcesync.ResourceSyncAuditService.ChangeType;
 import org.openarchives.resourcesync.ChangeList;
@@ -24,6 +22,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 /**
  * @author Richard Jones
@@ -36,6 +35,10 @@ public class DSpaceChangeList extends DSpaceResourceDocument {
 	private Date from;
 	private Date to;
 	private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+	private StreamingResourceList cl = null;
+	private List<ResourceSyncEvent> batch = new ArrayList<ResourceSyncEvent>();
+	private ContextCacheEvictor evictor = null;
+	private int pageSize = 100;
 	public DSpaceChangeList(Context context, Date from, Date to, UrlManager um) {
 		super(context);
 		this.includeRestricted = ConfigurationManager.getBooleanProperty("resourcesync",
@@ -59,32 +62,94 @@ public class DSpaceChangeList extends DSpaceResourceDocument {
 
 	}
 
-	public void serialiseForDump(OutputStream out, UrlManager um, List<ResourceSyncEvent> rseList)
+	public void serialiseForDump(OutputStream out, UrlManager um, Iterable<ResourceSyncEvent> rseList)
 			throws SQLException, IOException
-
 	{
-
-		ChangeList cl = new ChangeList(from, to, um.capabilityList());
+		this.open(out, um);
 		for (ResourceSyncEvent rse : rseList) {
+			this.addEvent(rse);
+		}
+		this.close();
+	}
+
+	/**
+	 * Start writing the change list to the given output.  Its entries are written out as the events
+	 * are added with {@link #addEvent(ResourceSyncEvent)}, so that the list is never held in memory,
+	 * and {@link #close()} completes the document.
+	 */
+	public void open(OutputStream out, UrlManager um) throws IOException {
+		ChangeList header = new ChangeList(from, to, um.capabilityList());
+		this.cl = new StreamingResourceList(header, out);
+		this.evictor = new ContextCacheEvictor(this.context);
+		this.pageSize = ConfigurationManager.getIntProperty("resourcesync", "enumerator.page-size", 100);
+	}
+
+	/**
+	 * Add the resources of the event to the open change list, a page of events at a time
+	 */
+	public void addEvent(ResourceSyncEvent rse) throws SQLException {
+		// the items of a page of events are loaded together
+		this.batch.add(rse);
+		if (this.batch.size() >= this.pageSize) {
+			this.addEvents(this.batch, this.cl);
+			this.batch.clear();
+			this.evictor.pageDone();
+		}
+	}
+
+	/**
+	 * Add the events still waiting, and complete the document
+	 */
+	public void close() throws SQLException, IOException {
+		this.addEvents(this.batch, this.cl);
+		this.batch.clear();
+		this.cl.close();
+	}
+
+	/**
+	 * @return the events, added to this open change list as they are iterated over, so that
+	 * another document (the change dump) is generated from the same pass over them; to be iterated
+	 * over once
+	 */
+	public Iterable<ResourceSyncEvent> passThrough(final Iterable<ResourceSyncEvent> rseList) {
+		return () -> new Iterator<ResourceSyncEvent>() {
+			private Iterator<ResourceSyncEvent> events = rseList.iterator();
+
+			@Override
+			public boolean hasNext() {
+				return this.events.hasNext();
+			}
+
+			@Override
+			public ResourceSyncEvent next() {
+				ResourceSyncEvent rse = this.events.next();
+				try {
+					addEvent(rse);
+				} catch (SQLException e) {
+					throw new RuntimeException(e.getMessage(), e);
+				}
+				return rse;
+			}
+		};
+	}
+
+	private void addEvents(List<ResourceSyncEvent> batch, ResourceSyncDocument cl) throws SQLException {
+		ItemPrefetch prefetch = this.prefetch(batch);
+		for (ResourceSyncEvent rse : batch) {
 			if (!rse.getChangetype().toLowerCase().equals(ChangeType.REMOVE.type()))
 			{
-				DSpaceObject dso = DSpaceObject.find(context, rse.getResource_type(), rse.getResource_id());
-				if (dso instanceof Item) {
-					Item i = (Item) dso;
+				Item i = rse.getResource_type() == Constants.ITEM ? prefetch.getItem(rse.getResource_id()) : null;
+				if (i != null) {
 					cl.setChangeType(rse.getChangetype());
-					this.addResources(i, cl);
+					this.addResources(i, prefetch, cl);
 				}
 			}
 			else
 			{
-				if (rse.getResource_type() == 2)
+				if (rse.getResource_type() == Constants.ITEM)
 				{
-					DSpaceResourceDocument dsrd = new DSpaceResourceDocument(context);
-					List <MetadataFormat> mdfList = new ArrayList<MetadataFormat>();
-					mdfList = dsrd.getMetadataFormats();
-					for (MetadataFormat mdf : mdfList)
+					for (MetadataFormat mdf : this.getMetadataFormats())
 					{
-						mdf.getPrefix();
 						cl.setChangeType(rse.getChangetype());
 						this.addResources(rse, cl,mdf.getPrefix());
 					}
@@ -96,8 +161,6 @@ public class DSpaceChangeList extends DSpaceResourceDocument {
 				}
 			}
 		}
-
-		cl.serialise(out);
 	}
 
 	 protected URL addResources(ResourceSyncEvent rse, ResourceSyncDocument rl,String format)
@@ -119,7 +182,7 @@ public class DSpaceChangeList extends DSpaceResourceDocument {
 		 	return bs;
 	    }
 	@Override
-	protected URL addBitstream(Bitstream bitstream, Item item, List<Collection> collections, ResourceSyncDocument rl) {
+	protected URL addBitstream(PrefetchedBitstream bitstream, Item item, List<String> collections, ResourceSyncDocument rl) {
 		URL url = super.addBitstream(bitstream, item, collections, rl);
 		// we can't ever know if an item is created in DSpace, as no such metadata
 		// exists
@@ -136,7 +199,7 @@ public class DSpaceChangeList extends DSpaceResourceDocument {
 	}
 
 	@Override
-	protected URL addMetadata(Item item, MetadataFormat format, List<Bitstream> describes, List<Collection> collections,
+	protected URL addMetadata(Item item, MetadataFormat format, List<PrefetchedBitstream> describes, List<String> collections,
 			ResourceSyncDocument rl) {
 		URL url = super.addMetadata(item, format, describes, collections, rl);
 		String change = null;
@@ -5,11 +5,9 @@
  */
 package org.dspace.resourcesync;
 
-import org.dspace.content.Bitstream;
-import org.dspace.content.Bundle;
-import org.dspace.content.Collection;
 import org.dspace.content.Item;
 import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.openarchives.resourcesync.ResourceSync;
 import org.openarchives.resourcesync.ResourceSyncDocument;
@@ -18,8 +16,8 @@ import org.openarchives.resourcesync.URL;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -47,67 +45,113 @@ public class DSpaceResourceDocument
         this.mdFormats = mdFormats;
     }
 
-    protected void addResources(Item item, ResourceSyncDocument rl)
+    /**
+     * Load the items the events of a batch are about, with their bitstreams and collections, in a
+     * few queries for the whole batch
+     */
+    protected ItemPrefetch prefetch(List<ResourceSyncEvent> events)
+            throws SQLException
+    {
+        LinkedHashSet<Integer> ids = new LinkedHashSet<Integer>();
+        for (ResourceSyncEvent rse : events)
+        {
+            if (rse.getResource_type() == Constants.ITEM)
+            {
+                ids.add(rse.getResource_id());
+            }
+        }
+        return ItemPrefetch.load(this.context, new ArrayList<Integer>(ids), false);
+    }
+
+    /**
+     * Add the resources of the item, using the bitstreams and collections which have already been
+     * loaded for it rather than querying for them
+     */
+    protected void addResources(Item item, ItemPrefetch prefetch, ResourceSyncDocument rl)
             throws SQLException
     {
         // record all of the bitstreams that we are going to expose
-        List<Bitstream> exposed = new ArrayList<Bitstream>();
+        List<PrefetchedBitstream> exposed = new ArrayList<PrefetchedBitstream>();
 
         // get the collections that the item is part of
-        Collection[] collection = item.getCollections();
-        List<Collection> clist = Arrays.asList(collection);
+        List<String> clist = prefetch.getCollectionHandles(item.getID());
 
         // add all the relevant bitstreams
         boolean isOnlyMetadata = ConfigurationManager.getBooleanProperty("resourcesync", "resourcedump.onlymetadata");
         if (!isOnlyMetadata)
         {
-        	for (Bundle bundle : item.getBundles())
+        	for (PrefetchedBitstream bitstream : prefetch.getBitstreams(item.getID()))
         	{
         		// only expose resources in permitted bundles
-        		if (!ResourceSyncConfiguration.getBundlesToExpose().contains(bundle.getName()))
+        		if (!ResourceSyncConfiguration.getBundlesToExpose().contains(bitstream.getBundleName()))
         		{
         			continue;
         		}
 
-        		for (Bitstream bitstream : bundle.getBitstreams())
-        		{
-        			this.addBitstream(bitstream, item, clist, rl);
-        			exposed.add(bitstream);
-        		}
+        		// the entry is only added to the document once the subclasses have completed it,
+        		// as documents may write their entries out as soon as they get them
+        		rl.addEntry(this.addBitstream(bitstream, item, clist, rl));
+        		exposed.add(bitstream);
         	}
         }
         // add all the relevant metadata formats
         for (MetadataFormat format : this.mdFormats)
         {
-            this.addMetadata(item, format, exposed, clist, rl);
+            rl.addEntry(this.addMetadata(item, format, exposed, clist, rl));
         }
     }
 
-    protected URL addBitstream(Bitstream bitstream, Item item, List<Collection> collections, ResourceSyncDocument rl)
+    protected URL addBitstream(PrefetchedBitstream bitstream, Item item, List<String> collections, ResourceSyncDocument rl)
     {
         URL bs = new URL();
 
         bs.setLoc(this.getBitstreamUrl(bitstream));
         bs.setLastModified(item.getLastModified()); // last modified date is not available on a bitstream, so we use the item one
-        bs.setType(bitstream.getFormat().getMIMEType());
+        bs.setType(bitstream.getMIMEType());
         bs.setLength(bitstream.getSize());
-        bs.addHash(bitstream.getChecksumAlgorithm().toLowerCase(), bitstream.getChecksum());
+        if (bitstream.getChecksumAlgorithm() != null)
+        {
+            bs.addHash(bitstream.getChecksumAlgorithm().toLowerCase(), bitstream.getChecksum());
+        }
+
+        // further digests, computed when the bitstream was last copied into a dump
+        addDigests(bs, bitstream);
 
         for (MetadataFormat format : this.mdFormats)
         {
             bs.addLn(ResourceSync.REL_DESCRIBED_BY, this.getMetadataUrl(item, format));
         }
 
-        for (Collection collection : collections)
+        for (String collection : collections)
         {
             bs.addLn(ResourceSync.REL_COLLECTION, this.getCollectionUrl(collection));
         }
 
-        rl.addEntry(bs);
         return bs;
     }
 
-    protected URL addMetadata(Item item, MetadataFormat format, List<Bitstream> describes, List<Collection> collections,
+    /**
+     * Add the digests of the {@link DigestCache} other than the DSpace checksum to the entry of the
+     * bitstream, if they have been computed for its current content
+     */
+    static void addDigests(URL url, PrefetchedBitstream bitstream)
+    {
+        DigestCache digests = DigestCache.getInstance();
+        Map<String, String> known = digests == null ? null : digests.get(bitstream.getID(), bitstream.getInternalID());
+        if (known == null)
+        {
+            return;
+        }
+        for (Map.Entry<String, String> digest : known.entrySet())
+        {
+            if (!digest.getKey().equalsIgnoreCase(bitstream.getChecksumAlgorithm()))
+            {
+                url.addHash(digest.getKey(), digest.getValue());
+            }
+        }
+    }
+
+    protected URL addMetadata(Item item, MetadataFormat format, List<PrefetchedBitstream> describes, List<String> collections,
     			ResourceSyncDocument rl)
     {
         URL metadata = new URL();
@@ -125,12 +169,12 @@ public class DSpaceResourceDocument
             metadata.setType(format.getMimetype());
         }
 
-        for (Bitstream bs : describes)
+        for (PrefetchedBitstream bs : describes)
         {
             metadata.addLn(ResourceSync.REL_DESCRIBES, this.getBitstreamUrl(bs));
         }
 
-        for (Collection collection : collections)
+        for (String collection : collections)
         {
             metadata.addLn(ResourceSync.REL_COLLECTION, this.getCollectionUrl(collection));
         }
@@ -147,7 +191,6 @@ public class DSpaceResourceDocument
             ln.setType(f.getMimetype());
         }
 
-        rl.addEntry(metadata);
         return metadata;
     }
 
@@ -247,15 +290,14 @@ public class DSpaceResourceDocument
         return url;
     }
 
-	protected String getBitstreamUrl(Bitstream bitstream) {
+	protected String getBitstreamUrl(PrefetchedBitstream bitstream) {
 		String bsLink = ConfigurationManager.getProperty("resourcesync", "base-url");
 		bsLink += "/bitstreams/" + bitstream.getID();
 		return bsLink;
 	}
 
-    protected String getCollectionUrl(Collection collection)
+    protected String getCollectionUrl(String handle)
     {
-        String handle = collection.getHandle();
         String base = ConfigurationManager.getProperty("dspace.url");
         return base + "/handle/" + handle;
     }
@@ -5,6 +5,7 @@
  */
 package org.dspace.resourcesync;
 
+import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Context;
 import org.openarchives.resourcesync.ResourceDump;
 
@@ -13,8 +14,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 /**
  * @author Richard Jones
  * @author Andrea Bollini (andrea.bollini at 4science.it)
@@ -25,6 +31,8 @@ public class DSpaceResourceDump extends DSpaceResourceDocument
 {
 	protected String metadataChangeFreq = null;
 	protected String bitstreamChangeFreq = null;
+	private List<File> previousDumps = null;
+	private boolean withResourceList = false;
 
 	public DSpaceResourceDump(Context context)
 	{
@@ -41,23 +49,194 @@ public class DSpaceResourceDump extends DSpaceResourceDocument
 		this.bitstreamChangeFreq = bitstreamChangeFreq;
 	}
 
+	/**
+	 * Copy the files of the unchanged resources from the zips of the dump being replaced, moved out
+	 * of the way beforehand
+	 */
+	public void setPreviousDumps(List<File> previousDumps)
+	{
+		this.previousDumps = previousDumps;
+	}
+
+	/**
+	 * Also generate the resource list of the scope, from the same walk over its items as the dump.
+	 * A dump split into parts walks over the items of every part separately, so the resource list
+	 * then has a walk of its own.
+	 */
+	public void setWithResourceList(boolean withResourceList)
+	{
+		this.withResourceList = withResourceList;
+	}
+
 	public void serialise(String rdDir, String handle,UrlManager um)
 			throws IOException, SQLException
 	{
-		// this generates the manifest file and zip file
-		
-		DSpaceResourceDumpZip drl = new DSpaceResourceDumpZip(this.context,rdDir);
-		drl.serialise(handle,um); // no output stream required
-		// now generate the dump file for the resourcesync framework
-		
+		PreviousDump previous = this.previousDumps == null || this.previousDumps.isEmpty() ? null :
+				PreviousDump.open(this.previousDumps);
+		try
+		{
+			this.serialise(rdDir, handle, um, previous);
+		}
+		finally
+		{
+			if (previous != null)
+			{
+				previous.close();
+			}
+		}
+	}
+
+	private void serialise(String rdDir, String handle, UrlManager um, PreviousDump previous)
+			throws IOException, SQLException
+	{
+		long maxBytes = ConfigurationManager.getLongProperty("resourcesync", "resourcedump.max-bytes", 0L);
+		int maxItems = ConfigurationManager.getIntProperty("resourcesync", "resourcedump.max-items", 0);
+
+		// whatever the previous dump was made of is replaced
+		this.deleteDumpFiles(rdDir);
+
 		ResourceDump rd = new ResourceDump(new Date(), um.capabilityList());
-		rd.addResourceZip(um.resourceDumpZip(), new Date(), "application/zip", this.getDumpSize(rdDir));
+		if (maxBytes <= 0 && maxItems <= 0)
+		{
+			// this generates the manifest file and zip file
+			DSpaceResourceDumpZip drl = new DSpaceResourceDumpZip(this.context,rdDir);
+			drl.setPreviousDump(previous);
+			SplitResourceList rl = null;
+			if (this.withResourceList)
+			{
+				int maxEntries = ConfigurationManager.getIntProperty("resourcesync", "resourcelist.max-entries", 50000);
+				long maxListBytes = ConfigurationManager.getLongProperty("resourcesync", "resourcelist.max-bytes", 50000000L);
+				rl = new SplitResourceList(rdDir, um, maxEntries, maxListBytes);
+				rl.setOmitPaths(true);
+				rl.setIndexExpected(drl.isIndexExpected(handle, maxEntries));
+				drl.setResourceList(rl);
+			}
+			drl.serialise(handle,um); // no output stream required
+			if (rl != null)
+			{
+				rl.close();
+			}
+			rd.addResourceZip(um.resourceDumpZip(), new Date(), "application/zip", this.getDumpSize(rdDir, FileNames.resourceDumpZip));
+		}
+		else
+		{
+			// every part is a complete dump of its share of the items, with its own manifest
+			List<List<Integer>> parts = new DSpaceResourceDumpZip(this.context, rdDir).planParts(handle, maxBytes, maxItems);
+			if (this.withResourceList)
+			{
+				new DSpaceResourceList(this.context).serialise(rdDir, handle, um);
+			}
+			this.serialiseParts(rdDir, handle, um, parts, previous);
+			for (int i = 0; i < parts.size(); i++)
+			{
+				String part = FileNames.resourceDumpPart(i + 1);
+				rd.addResourceZip(um.resourceDumpPart(part), new Date(), "application/zip", this.getDumpSize(rdDir, part));
+			}
+		}
 
+		// now generate the dump file for the resourcesync framework
 		String rdFile = rdDir + File.separator + FileNames.resourceDump;
 		FileOutputStream fos = new FileOutputStream(new File(rdFile));
 		rd.serialise(fos);
 		fos.close();
 	}
+
+	/**
+	 * Generate the parts of the dump, resourcedump.part-threads of them at a time, each with its
+	 * own context
+	 */
+	private void serialiseParts(final String rdDir, final String handle, final UrlManager um, List<List<Integer>> parts,
+			final PreviousDump previous)
+			throws IOException, SQLException
+	{
+		int threads = ConfigurationManager.getIntProperty("resourcesync", "resourcedump.part-threads", 1);
+		if (threads <= 1)
+		{
+			for (int i = 0; i < parts.size(); i++)
+			{
+				DSpaceResourceDumpZip drl = new DSpaceResourceDumpZip(this.context, rdDir, FileNames.resourceDumpPart(i + 1), parts.get(i));
+				drl.setPreviousDump(previous);
+				drl.serialise(handle, um);
+			}
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		try
+		{
+			for (int i = 0; i < parts.size(); i++)
+			{
+				final String part = FileNames.resourceDumpPart(i + 1);
+				final List<Integer> itemIDs = parts.get(i);
+				futures.add(executor.submit(() -> {
+					Context context = new Context();
+					try
+					{
+						DSpaceResourceDumpZip drl = new DSpaceResourceDumpZip(context, rdDir, part, itemIDs);
+						drl.setPreviousDump(previous);
+						drl.serialise(handle, um);
+					}
+					finally
+					{
+						context.abort();
+					}
+					return null;
+				}));
+			}
+
+			for (Future<Object> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					if (cause instanceof SQLException)
+					{
+						throw (SQLException) cause;
+					}
+					else if (cause instanceof IOException)
+					{
+						throw (IOException) cause;
+					}
+					else if (cause instanceof RuntimeException)
+					{
+						throw (RuntimeException) cause;
+					}
+					throw new IOException(cause);
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private void deleteDumpFiles(String dir)
+	{
+		File[] files = new File(dir).listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			if (file.getName().equals(FileNames.resourceDumpZip) || FileNames.isResourceDumpPart(file))
+			{
+				file.delete();
+			}
+		}
+	}
+
 	public synchronized void serialise(String handle,UrlManager um,OutputStream os)
 			throws IOException, SQLException
 	{
@@ -66,9 +245,9 @@ public class DSpaceResourceDump extends DSpaceResourceDocument
 		drl.getZos().close();
 	}
 
-	private long getDumpSize(String dir)
+	private long getDumpSize(String dir, String filename)
 	{
-		String path = dir + File.separator + FileNames.resourceDumpZip;
+		String path = dir + File.separator + filename;
 		File file = new File(path);
 		return file.length();
 	}
@@ -7,26 +7,25 @@ package org.dspace.resourcesync;
 
 import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
-import org.dspace.content.Bitstream;
-import org.dspace.content.Collection;
+import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.content.crosswalk.CrosswalkException;
+import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Context;
+import org.openarchives.resourcesync.ResourceList;
 import org.openarchives.resourcesync.ResourceSyncDocument;
+import org.openarchives.resourcesync.ResourceSyncEntry;
 import org.openarchives.resourcesync.URL;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 /**
  * @author Richard Jones
@@ -35,24 +34,61 @@ import java.util.zip.ZipOutputStream;
  */
 public class DSpaceResourceDumpZip extends DSpaceResourceList {
 	private String dumpDir;
+	private String zipName = FileNames.resourceDumpZip;
+	private List<Integer> itemIDs = null;
 	private ZipOutputStream zos;
 	private ZipOutputStream zosOnTheFly;
 	boolean isOnTheFly = false;
 	private OutputStream baos;
+	private OrderedZipWriter writer;
+	private ZipCompressionPolicy compression;
+	private ParallelZipAssembler assembler = null;
+	private DumpContentIndex contents = null;
+	private PreviousDump previous = null;
+	private ResourceSyncDocument resourceList = null;
     private static Logger log = Logger.getLogger(DSpaceResourceDumpZip.class);
 
+	// the exports are not rendered when planning the parts of a dump, so their size is guessed
+	private static final long METADATA_SIZE_ESTIMATE = 4096;
+
 	public DSpaceResourceDumpZip(Context context, String dumpDir) {
 		super(context, true);
 		this.dumpDir = dumpDir;
 		this.isOnTheFly = false;
 	}
 
+	/**
+	 * A dump of the given items only, written to the given file; used for the parts of a dump
+	 */
+	public DSpaceResourceDumpZip(Context context, String dumpDir, String zipName, List<Integer> itemIDs) {
+		this(context, dumpDir);
+		this.zipName = zipName;
+		this.itemIDs = itemIDs;
+	}
+
 	public DSpaceResourceDumpZip(Context context,OutputStream os) {
 		super(context, true);
 		this.isOnTheFly = true;
 		this.baos = os;
 	}
 
+	/**
+	 * Copy the files of the resources which have not changed from the given dump, rather than
+	 * producing and compressing them again
+	 */
+	public void setPreviousDump(PreviousDump previous) {
+		this.previous = previous;
+	}
+
+	/**
+	 * Also hand every entry of the manifest to the given resource list, so that the resource list
+	 * and the dump of the scope are produced by the same walk over its items.  The list should
+	 * leave out the dump paths of the entries.
+	 */
+	public void setResourceList(ResourceSyncDocument resourceList) {
+		this.resourceList = resourceList;
+	}
+
 	public ZipOutputStream getZos() {
 		if (isOnTheFly) {
 			if (this.zosOnTheFly == null) {
@@ -63,7 +99,7 @@ public class DSpaceResourceDumpZip extends DSpaceResourceList {
 			if (this.zos == null) {
 				try {
 					this.zos = new ZipOutputStream(
-							new FileOutputStream(this.dumpDir + File.separator + FileNames.resourceDumpZip));
+							new FileOutputStream(this.dumpDir + File.separator + this.zipName));
 				} catch (FileNotFoundException e) {
 					log.error(e.getMessage(),e);				}
 			}
@@ -73,70 +109,203 @@ public class DSpaceResourceDumpZip extends DSpaceResourceList {
 	
 
 	public void serialise(String handle, UrlManager um) throws SQLException, IOException {
-		// first generate the manifest file. This uses the other overrides in this
-		// object
-		// to also copy in the bitstreams and metadata serialisations which are relevant
-		// everything will be added to the zip
-		if (!isOnTheFly) {
-			String drlFile = FileNames.resourceDumpManifest;
-			FileOutputStream fos = new FileOutputStream(new File(drlFile));
-			this.serialise(fos, handle, um);
-
-			// incorporate the manifest into the zip
-			File manifest = new File(drlFile);
-			FileInputStream is = new FileInputStream(manifest);
-			
-			this.copyToZip(FileNames.resourceDumpManifest, is);
+		// the metadata exports may be rendered concurrently, but the zip is only written by this thread
+		MetadataRenderer renderer = MetadataRenderer.getConfiguredRenderer();
+		int maxPending = ConfigurationManager.getIntProperty("resourcesync", "metadata.render-queue-size", 100);
+		this.compression = ZipCompressionPolicy.getConfigured();
+		this.contents = DumpContentIndex.getConfigured();
 
-			getZos().close();
+		// a zip written to a file can have its entries compressed concurrently
+		int assemblyThreads = ParallelZipAssembler.getConfiguredThreads();
+		BitstreamReadAhead readAhead = null;
+		if (!isOnTheFly && (assemblyThreads > 0 || this.previous != null)) {
+			// copying files from the previous dump as they are takes an assembler
+			this.assembler = new ParallelZipAssembler(Math.max(1, assemblyThreads), this.compression, maxPending);
+			this.writer = new OrderedZipWriter(this.assembler, renderer, this.compression, maxPending);
+		} else {
+			// a single thread compresses, so the bitstreams are read ahead of it
+			readAhead = BitstreamReadAhead.getConfigured();
+			this.writer = new OrderedZipWriter(getZos(), this.context, renderer, this.compression, maxPending);
+			this.writer.setReadAhead(readAhead);
+		}
+		try {
+			this.serialiseDump(handle, um);
+		} finally {
+			if (renderer != null) {
+				renderer.close();
+			}
+			if (readAhead != null) {
+				readAhead.close();
+			}
+			if (this.assembler != null) {
+				this.assembler.close();
+			}
+		}
+	}
 
-			// get rid of the left over manifest file
-			manifest.delete();
+	private void serialiseDump(String handle, UrlManager um) throws SQLException, IOException {
+		// the manifest is generated while the files go to the zip, and comes last in it.  This uses
+		// the other overrides in this object to also add the bitstreams and metadata serialisations
+		// which are relevant
+		OutputStream manifest = this.writer.openEntry(FileNames.resourceDumpManifest, "application/xml");
+		try {
+			this.serialise(manifest, handle, um);
+		} finally {
+			manifest.close();
 		}
-		else {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			this.serialise(baos, handle, um);
-			ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-			this.copyToZip(FileNames.resourceDumpManifest, bais);
+		this.writer.flush();
+
+		if (this.assembler != null) {
+			File zip = new File(this.dumpDir, this.zipName);
+			OutputStream out = new FileOutputStream(zip);
+			boolean written = false;
+			try {
+				this.assembler.writeTo(out);
+				written = true;
+			} finally {
+				out.close();
+				// a zip missing files its manifest lists is not left behind
+				if (!written) {
+					zip.delete();
+				}
+			}
+		} else if (!isOnTheFly) {
+			getZos().close();
 		}
+	}
 
+	@Override
+	protected StreamingResourceList createStreamingList(ResourceList header, OutputStream out) throws IOException {
+		// every entry of the manifest is written after its file, with the digests computed while copying it
+		return this.writer.createManifest(header, out);
+	}
+
+	/**
+	 * Share the items of the scope between the parts of a dump, so that each part is roughly no
+	 * bigger than the given size (estimated from the sizes of the bitstreams to include) and has
+	 * no more than the given number of items.  There is always at least one, possibly empty, part.
+	 *
+	 * @param maxBytes	the size of a part, or 0 for no limit
+	 * @param maxItems	the number of items in a part, or 0 for no limit
+	 * @return the ids of the items of every part
+	 */
+	public List<List<Integer>> planParts(String handle, long maxBytes, int maxItems) throws SQLException {
+		boolean isOnlyMetadata = ConfigurationManager.getBooleanProperty("resourcesync", "resourcedump.onlymetadata");
+		List<String> exposeBundles = ResourceSyncConfiguration.getBundlesToExpose();
+
+		List<List<Integer>> parts = new ArrayList<List<Integer>>();
+		List<Integer> part = new ArrayList<Integer>();
+		long bytes = 0;
 
+		ItemEnumerator enumerator = this.getItemEnumerator(this.getScope(handle));
+		ContextCacheEvictor evictor = new ContextCacheEvictor(this.context);
+		List<Integer> page = enumerator.nextPage();
+		while (!page.isEmpty()) {
+			ItemPrefetch prefetch = ItemPrefetch.load(this.context, page, false);
+			for (Integer id : page) {
+				if (prefetch.getItem(id) == null) {
+					continue;
+				}
+
+				long size = this.mdFormats.size() * METADATA_SIZE_ESTIMATE;
+				if (!isOnlyMetadata) {
+					for (PrefetchedBitstream bitstream : prefetch.getBitstreams(id)) {
+						if (exposeBundles.contains(bitstream.getBundleName())) {
+							size += bitstream.getSize();
+						}
+					}
+				}
+
+				boolean full = (maxItems > 0 && part.size() >= maxItems) || (maxBytes > 0 && bytes + size > maxBytes);
+				if (full && !part.isEmpty()) {
+					parts.add(part);
+					part = new ArrayList<Integer>();
+					bytes = 0;
+				}
+				part.add(id);
+				bytes += size;
+			}
+			evictor.pageDone();
+			page = enumerator.nextPage();
+		}
+		parts.add(part);
+		return parts;
 	}
 
-	private void copyToZip(String entryName, InputStream is) throws IOException {
-		getZos().putNextEntry(new ZipEntry(entryName));
-		byte[] buffer = new byte[102400]; // 100k chunks
-		int len = is.read(buffer);
-		while (len != -1) {
-			getZos().write(buffer, 0, len);
-			len = is.read(buffer);
+	@Override
+	protected ItemEnumerator getItemEnumerator(DSpaceObject scope) {
+		if (this.itemIDs != null) {
+			return new FixedItemEnumerator(this.itemIDs, this.getPageSize());
 		}
-		getZos().closeEntry();
+		return super.getItemEnumerator(scope);
 	}
 
 	@Override
-	protected URL addBitstream(Bitstream bitstream, Item item, List<Collection> collections, ResourceSyncDocument rl) {
+	protected URL addBitstream(PrefetchedBitstream bitstream, Item item, List<String> collections, ResourceSyncDocument rl) {
 		URL url = super.addBitstream(bitstream, item, collections, rl);
 		String dumppath = this.getPath(item, bitstream, null, false);
 		url.setPath(dumppath);
 
+		String entryName = this.getPath(item, bitstream, null, true);
+		PreviousDump.RawEntry raw = this.previous == null ? null :
+				this.previous.getUnchanged(this.getBitstreamUrl(bitstream), item.getLastModified(), bitstream.getChecksumAlgorithm(), bitstream.getChecksum());
+		if (rl instanceof PageBuffer) {
+			// copied when the page is written, so that the zip entries keep the manifest order
+			((PageBuffer) rl).addDumpBitstream(entryName, dumppath, bitstream, url, raw);
+			return url;
+		}
+
 		// now actually get the bitstream and stick it in the directory
 		try {
-			String entryName = this.getPath(item, bitstream, null, true);
-			InputStream is = bitstream.retrieve();
-			this.copyToZip(entryName, is);
+			this.addToZip(entryName, dumppath, bitstream, url, raw);
 		} catch (IOException e) {
 			log.error(e.getMessage(),e);				
-		} catch (SQLException e) {
-			log.error(e.getMessage(),e);				
-		} catch (AuthorizeException e) {
-			log.error(e.getMessage(),e);				
 		}
 
 		return url;
 	}
 
-	private String getPath(Item item, Bitstream bitstream, MetadataFormat format, boolean nativeSeparator) {
+	/**
+	 * Add the bitstream to the zip, unless the same content is there already, in which case the
+	 * manifest entry points at it instead; an unchanged bitstream is copied from the previous dump
+	 */
+	private void addToZip(String entryName, String dumppath, PrefetchedBitstream bitstream, URL url,
+			PreviousDump.RawEntry raw) throws IOException {
+		String existing = this.contents == null ? null : this.contents.claim(bitstream, dumppath);
+		if (existing != null) {
+			url.setPath(existing);
+			return;
+		}
+		if (raw != null) {
+			this.writer.addRaw(entryName, raw);
+			return;
+		}
+		this.writer.addBitstream(entryName, bitstream, url);
+	}
+
+	@Override
+	protected void writePage(PageBuffer page, ResourceSyncDocument rl) throws SQLException, IOException {
+		for (PageBuffer.DumpEntry entry : page.getDumpEntries()) {
+			if (entry.getBitstream() == null && entry.getRaw() != null) {
+				this.writer.addRaw(entry.getName(), entry.getRaw());
+			} else if (entry.getContent() != null) {
+				this.writer.addContent(entry.getName(), entry.getContent(), entry.getMimeType());
+			} else if (entry.getRendering() != null) {
+				this.writer.addRendering(entry.getName(), entry.getRendering(), entry.getMimeType());
+			} else {
+				this.addToZip(entry.getName(), entry.getPath(), entry.getBitstream(), entry.getUrl(), entry.getRaw());
+			}
+		}
+		super.writePage(page, rl);
+		if (this.resourceList != null) {
+			// also after the files, so that the list carries the digests computed while copying them
+			for (ResourceSyncEntry entry : page.getBufferedEntries()) {
+				this.writer.addDocumentEntry(this.resourceList, entry);
+			}
+		}
+	}
+
+	private String getPath(Item item, PrefetchedBitstream bitstream, MetadataFormat format, boolean nativeSeparator) {
 		String separator = nativeSeparator ? File.separator : "/";
 		String itempath = item.getHandle().replace("/", "_");
 
@@ -153,31 +322,52 @@ public class DSpaceResourceDumpZip extends DSpaceResourceList {
 	}
 
 	@Override
-	protected URL addMetadata(Item item, MetadataFormat format, List<Bitstream> describes, List<Collection> collections,
+	protected URL addMetadata(Item item, MetadataFormat format, List<PrefetchedBitstream> describes, List<String> collections,
 			ResourceSyncDocument rl) {
 		URL url = super.addMetadata(item, format, describes, collections, rl);
 		String dumppath = this.getPath(item, null, format, false);
 		url.setPath(dumppath);
 
+		String entryName = this.getPath(item, null, format, true);
+		PreviousDump.RawEntry raw = this.previous == null ? null :
+				this.previous.getUnchanged(this.getMetadataUrl(item, format), item.getLastModified(), null, null);
+		if (raw != null) {
+			// the item has not changed since the previous dump, so neither has its export
+			if (rl instanceof PageBuffer) {
+				((PageBuffer) rl).addDumpRaw(entryName, raw);
+			} else {
+				this.writer.addRaw(entryName, raw);
+			}
+			return url;
+		}
+		if (rl instanceof PageBuffer && this.writer.getRenderer() != null) {
+			// rendered concurrently, and added to the zip with the page
+			((PageBuffer) rl).addDumpRendering(entryName, this.writer.getRenderer().render(item.getID(), format.getPrefix()), format.getMimetype());
+			return url;
+		}
+		if (rl instanceof PageBuffer) {
+			// render it now, possibly in a worker thread; it is added to the zip with the page
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				MetadataDisseminator.disseminate(item, format.getPrefix(), out);
+				((PageBuffer) rl).addDumpContent(entryName, out.toByteArray(), format.getMimetype());
+			} catch (IOException e) {
+				log.error(e.getMessage(),e);
+			} catch (SQLException e) {
+				log.error(e.getMessage(),e);
+			} catch (AuthorizeException e) {
+				log.error(e.getMessage(),e);
+			} catch (CrosswalkException e) {
+				log.error(e.getMessage(),e);
+			}
+			return url;
+		}
+
 		// now actually get the metadata export and stick it in the directory
 		try {
-			String entryName = this.getPath(item, null, format, true);
-			ZipEntry e = new ZipEntry(entryName);
-			getZos().putNextEntry(e);
-
-			// get the dissemination crosswalk for this prefix and get the element for the
-			// object
-			MetadataDisseminator.disseminate(item, format.getPrefix(), getZos());
-
-			getZos().closeEntry();
+			this.writer.addMetadata(entryName, item, format.getPrefix(), format.getMimetype());
 		} catch (IOException e) {
 			log.error(e.getMessage(),e);				
-		} catch (SQLException e) {
-			log.error(e.getMessage(),e);				
-		} catch (AuthorizeException e) {
-			log.error(e.getMessage(),e);				
-		} catch (CrosswalkException e) {
-			log.error(e.getMessage(),e);				
 		}
 
 		return url;
@@ -5,26 +5,22 @@
  */
 package org.dspace.resourcesync;
 
-import org.apache.log4j.Logger;
-import org.dspace.browse.BrowseEngine;
-import org.dspace.browse.BrowseException;
-import org.dspace.browse.BrowseIndex;
-import org.dspace.browse.BrowseInfo;
-import org.dspace.browse.BrowserScope;
-import org.dspace.content.Bitstream;
-import org.dspace.content.Collection;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.content.Site;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
 import org.dspace.core.Context;
 import org.dspace.handle.HandleManager;
 import org.openarchives.resourcesync.ResourceList;
 import org.openarchives.resourcesync.ResourceSyncDocument;
+import org.openarchives.resourcesync.ResourceSyncEntry;
 import org.openarchives.resourcesync.URL;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 /**
@@ -37,7 +33,6 @@ public class DSpaceResourceList extends DSpaceResourceDocument
     protected String metadataChangeFreq = null;
     protected String bitstreamChangeFreq = null;
     protected boolean dump = false;
-    private static Logger log = Logger.getLogger(DSpaceResourceList.class);
 
     public DSpaceResourceList(Context context)
     {
@@ -63,67 +58,198 @@ public class DSpaceResourceList extends DSpaceResourceDocument
         this.dump = dump;
     }
 
+    //used for resourcelist, split in several documents when it gets too big
+    public void serialise(String dir,String handle,UrlManager um)
+            throws SQLException, IOException
+    {
+        int maxEntries = ConfigurationManager.getIntProperty("resourcesync", "resourcelist.max-entries", 50000);
+        long maxBytes = ConfigurationManager.getLongProperty("resourcesync", "resourcelist.max-bytes", 50000000L);
+        SplitResourceList rl = new SplitResourceList(dir, um, maxEntries, maxBytes);
+        rl.setIndexExpected(this.isIndexExpected(handle, maxEntries));
+        this.addAll(handle, rl);
+        rl.close();
+    }
+
     //used for resourcedump
     public void serialise(OutputStream out,String handle,UrlManager um)
             throws SQLException, IOException
     {
     	
-        ResourceList rl = new ResourceList(um.capabilityList(), this.dump);
-        DSpaceObject dSpaceObject = null;
-        if (!handle.equals(Site.getSiteHandle())) {
-        	dSpaceObject = HandleManager.resolveToObject(context, handle);
+        // the entries are written out as they are produced, so that the list is never held in memory
+        ResourceList header = new ResourceList(um.capabilityList(), this.dump);
+        header.setLastModified(new Date());
+        StreamingResourceList rl = this.createStreamingList(header, out);
+        this.addAll(handle, rl);
+        rl.close();
+    }
+
+    /**
+     * @return the document the entries are streamed to by the serialise methods writing to a stream
+     */
+    protected StreamingResourceList createStreamingList(ResourceList header, OutputStream out)
+            throws IOException
+    {
+        return new StreamingResourceList(header, out);
+    }
+
+    /**
+     * Add the resources of all the items in the scope of the given handle to the document
+     */
+    protected void addAll(String handle, final ResourceSyncDocument rl)
+            throws SQLException, IOException
+    {
+        ItemEnumerator enumerator = this.getItemEnumerator(this.getScope(handle));
+        final ContextCacheEvictor evictor = new ContextCacheEvictor(this.context);
+
+        if (GenerationPipeline.getConfiguredWorkers() > 0)
+        {
+        	// build the pages concurrently, and write them out here in order
+        	GenerationPipeline.getConfiguredPipeline().run(enumerator,
+        			(context, itemIDs) -> this.buildPage(context, itemIDs),
+        			(page) -> {
+        				this.writePage(page, rl);
+        				evictor.pageDone();
+        			});
+        	return;
         }
-        
-        try {
-			BrowseEngine be = new BrowseEngine(context);
-	        BrowserScope bs = new BrowserScope(context);
-	        bs.setBrowseIndex(BrowseIndex.getItemBrowseIndex());
-	        
-	        bs.setResultsPerPage(100);
-	        if (dSpaceObject != null) {
-	        	bs.setBrowseContainer(dSpaceObject);
-	        }
-	        boolean end = false;
-	        int offset = 0;
-	        while (!end) {
-	        	BrowseInfo binfo = be.browse(bs);
-	        	end = binfo.isLast();
-	        	Item[] items = binfo.getItemResults(this.context);
-	        	for (Item it : items)
-	        	{
-	        		this.addResources(it, rl);
-	        	}
-	        	
-	        	offset += binfo.getNextOffset();
-	        	bs.setOffset(offset);
-	        }
-
-		} catch (BrowseException e) {
-			log.error(e.getMessage(),e);				
-		}
 
-        rl.setLastModified(new Date());
-        rl.serialise(out);
+        List<Integer> page = enumerator.nextPage();
+        while (!page.isEmpty())
+        {
+        	this.writePage(this.buildPage(this.context, page), rl);
+        	evictor.pageDone();
+        	page = enumerator.nextPage();
+        }
+    }
+
+    /**
+     * Build the entries for a page of items.  This may run in a worker thread, so everything must
+     * be loaded through the given context
+     */
+    protected PageBuffer buildPage(Context context, List<Integer> itemIDs)
+            throws SQLException, IOException
+    {
+        PageBuffer buffer = new PageBuffer();
+
+        // load everything needed for the whole page in a few queries
+        ItemPrefetch prefetch = ItemPrefetch.load(context, itemIDs, false);
+        for (Integer id : itemIDs)
+        {
+            Item it = prefetch.getItem(id);
+            if (it != null)
+            {
+                this.addResources(it, prefetch, buffer);
+            }
+        }
+        return buffer;
     }
+
+    /**
+     * Write out a page of entries built by {@link #buildPage(Context, List)}
+     */
+    protected void writePage(PageBuffer page, ResourceSyncDocument rl)
+            throws SQLException, IOException
+    {
+        for (ResourceSyncEntry entry : page.getBufferedEntries())
+        {
+            rl.addEntry(entry);
+        }
+    }
+
+    /**
+     * Tell whether the resource list of the scope is bound to need an index, from the least number
+     * of entries its items produce (one per metadata format), so that its parts can link to the
+     * index as they are written
+     */
+    protected boolean isIndexExpected(String handle, int maxEntries)
+            throws SQLException
+    {
+        if (this.mdFormats == null || this.mdFormats.isEmpty())
+        {
+            return false;
+        }
+        long items = KeysetItemEnumerator.count(this.context, this.getScope(handle));
+        return items * this.mdFormats.size() > maxEntries;
+    }
+
+    /**
+     * @return the community or collection with the given handle, or null for the site
+     */
+    protected DSpaceObject getScope(String handle)
+            throws SQLException
+    {
+        if (handle.equals(Site.getSiteHandle()))
+        {
+            return null;
+        }
+        return HandleManager.resolveToObject(this.context, handle);
+    }
+
+    /**
+     * Get the configured source of the items in the given scope
+     *
+     * @param scope the community or collection, or null for the whole repository
+     */
+    protected ItemEnumerator getItemEnumerator(DSpaceObject scope)
+    {
+        String type = ConfigurationManager.getProperty("resourcesync", "enumerator");
+        if ("browse".equals(type))
+        {
+            return new BrowseItemEnumerator(this.context, scope, this.getPageSize());
+        }
+        else if ("discovery".equals(type))
+        {
+            return new DiscoveryItemEnumerator(scope, this.getPageSize());
+        }
+        return new KeysetItemEnumerator(this.context, scope, this.getPageSize());
+    }
+
+    /**
+     * @return the number of items to fetch at a time
+     */
+    protected int getPageSize()
+    {
+        return ConfigurationManager.getIntProperty("resourcesync", "enumerator.page-size", 100);
+    }
+
     //used for changedump
-    public void serialise(OutputStream out,UrlManager um,List<ResourceSyncEvent> rseList)
+    public void serialise(OutputStream out,UrlManager um,Iterable<ResourceSyncEvent> rseList)
             throws SQLException, IOException
     {
-        ResourceList rl = new ResourceList(null,um.capabilityList(), this.dump,this.dump);
+        ResourceList header = new ResourceList(null,um.capabilityList(), this.dump,this.dump);
+        header.setLastModified(new Date());
+        StreamingResourceList rl = this.createStreamingList(header, out);
+        ContextCacheEvictor evictor = new ContextCacheEvictor(this.context);
+        List<ResourceSyncEvent> batch = new ArrayList<ResourceSyncEvent>();
 		for (ResourceSyncEvent rse : rseList) {
-			DSpaceObject dso = DSpaceObject.find(context, rse.getResource_type(), rse.getResource_id());
-			if (dso instanceof Item) {
-				Item i = (Item) dso;
-
-        		this.addResources(i, rl);
+			batch.add(rse);
+			if (batch.size() >= this.getPageSize()) {
+				this.addEvents(batch, rl);
+				batch.clear();
+				evictor.pageDone();
 			}
 		}
-        rl.setLastModified(new Date());
-        rl.serialise(out);
+		this.addEvents(batch, rl);
+        rl.close();
+    }
+
+    /**
+     * Add the resources of the items of a batch of events, prefetched together
+     */
+    private void addEvents(List<ResourceSyncEvent> batch, ResourceSyncDocument rl)
+            throws SQLException
+    {
+        ItemPrefetch prefetch = this.prefetch(batch);
+        for (ResourceSyncEvent rse : batch) {
+            Item i = rse.getResource_type() == Constants.ITEM ? prefetch.getItem(rse.getResource_id()) : null;
+            if (i != null) {
+                this.addResources(i, prefetch, rl);
+            }
+        }
     }
     
     @Override
-    protected URL addBitstream(Bitstream bitstream, Item item, List<Collection> collections, ResourceSyncDocument rl)
+    protected URL addBitstream(PrefetchedBitstream bitstream, Item item, List<String> collections, ResourceSyncDocument rl)
     {
         URL url = super.addBitstream(bitstream, item, collections, rl);
         url.setChangeFreq(this.bitstreamChangeFreq);
@@ -131,7 +257,7 @@ public class DSpaceResourceList extends DSpaceResourceDocument
     }
 
     @Override
-    protected URL addMetadata(Item item, MetadataFormat format, List<Bitstream> describes, List<Collection> collections, ResourceSyncDocument rl)
+    protected URL addMetadata(Item item, MetadataFormat format, List<PrefetchedBitstream> describes, List<String> collections, ResourceSyncDocument rl)
     {
         URL url = super.addMetadata(item, format, describes, collections, rl);
         if (this.metadataChangeFreq != null)
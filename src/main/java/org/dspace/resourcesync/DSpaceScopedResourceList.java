@@ -0,0 +1,141 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.content.Item;
+import org.dspace.content.Site;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.openarchives.resourcesync.ResourceSyncDocument;
+import org.openarchives.resourcesync.ResourceSyncEntry;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resource lists for many capability list scopes at once.
+ *
+ * Rather than browsing the archive once per handle, the archive is walked a single time and the
+ * entries for each item are built once, then handed to the resource list of every scope the item
+ * belongs to (its collections, all of their ancestor communities and the site).  The cost of the
+ * generation is therefore proportional to the number of items, not to items times the depth of
+ * the community tree.
+ */
+public class DSpaceScopedResourceList extends DSpaceResourceList
+{
+    private Map<String, SplitResourceList> lists;
+
+    public DSpaceScopedResourceList(Context context)
+    {
+        super(context);
+    }
+
+    /**
+     * Generate the resource lists for all the given scopes
+     *
+     * @param dirs  the directory to write the resource list of each scope to, keyed by handle
+     * @param ums   the url manager of each scope, keyed by handle
+     */
+    public void serialise(Map<String, String> dirs, Map<String, UrlManager> ums)
+            throws SQLException, IOException
+    {
+        int maxEntries = ConfigurationManager.getIntProperty("resourcesync", "resourcelist.max-entries", 50000);
+        long maxBytes = ConfigurationManager.getLongProperty("resourcesync", "resourcelist.max-bytes", 50000000L);
+
+        // every scope has its own list open for the whole traversal, and entries are written as
+        // soon as they are produced
+        this.lists = new HashMap<String, SplitResourceList>();
+        for (String handle : dirs.keySet())
+        {
+            SplitResourceList rl = new SplitResourceList(dirs.get(handle), ums.get(handle), maxEntries, maxBytes);
+            rl.setIndexExpected(this.isIndexExpected(handle, maxEntries));
+            this.lists.put(handle, rl);
+        }
+
+        // the scopes are resolved per entry when the page is written, so there is no single target
+        this.addAll(Site.getSiteHandle(), null);
+
+        for (SplitResourceList rl : this.lists.values())
+        {
+            rl.close();
+        }
+    }
+
+    @Override
+    protected PageBuffer buildPage(Context context, List<Integer> itemIDs)
+            throws SQLException, IOException
+    {
+        PageBuffer buffer = new PageBuffer();
+
+        // load everything needed for the whole page, scopes included, in a few queries
+        ItemPrefetch prefetch = ItemPrefetch.load(context, itemIDs, true);
+        for (Integer id : itemIDs)
+        {
+            Item item = prefetch.getItem(id);
+            if (item == null)
+            {
+                continue;
+            }
+
+            List<String> scopes = new ArrayList<String>();
+            for (String scope : this.getScopes(item, prefetch))
+            {
+                if (this.lists.containsKey(scope))
+                {
+                    scopes.add(scope);
+                }
+            }
+
+            if (!scopes.isEmpty())
+            {
+                buffer.setScopes(scopes);
+                this.addResources(item, prefetch, buffer);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Hand every entry of the page to the resource list of each scope of its item
+     */
+    @Override
+    protected void writePage(PageBuffer page, ResourceSyncDocument rl)
+            throws SQLException, IOException
+    {
+        List<ResourceSyncEntry> entries = page.getBufferedEntries();
+        for (int i = 0; i < entries.size(); i++)
+        {
+            for (String scope : page.getEntryScopes(i))
+            {
+                this.lists.get(scope).addEntry(entries.get(i));
+            }
+        }
+    }
+
+    /**
+     * All the handles whose resource list should contain the item: its collections, the
+     * communities above them and the site
+     */
+    protected List<String> getScopes(Item item, ItemPrefetch prefetch)
+    {
+        List<String> scopes = new ArrayList<String>();
+        scopes.addAll(prefetch.getCollectionHandles(item.getID()));
+        // this already includes all the ancestors of the owning communities
+        for (String c : prefetch.getCommunityHandles(item.getID()))
+        {
+            if (!scopes.contains(c))
+            {
+                scopes.add(c);
+            }
+        }
+        scopes.add(Site.getSiteHandle());
+        return scopes;
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The digests of bitstreams in algorithms other than the one of their DSpace checksum (such as
+ * sha-256), computed while the bitstreams are copied into dumps, so that they can be published in
+ * the hash attribute of every later document without reading the content again.
+ *
+ * A digest is kept under the id of the bitstream and its internal id, which changes with its
+ * content.  The digests are appended to a log file, one bitstream per line, and loaded from it
+ * when the cache is first used; the log is rewritten without its stale lines once these outnumber
+ * the others.  The digests added by another process only show up once the cache is loaded again.
+ */
+public class DigestCache
+{
+    private static Logger log = Logger.getLogger(DigestCache.class);
+
+    private static DigestCache instance = null;
+    private static boolean initialised = false;
+
+    private List<String> algorithms;
+    private File file;
+    private Map<Integer, Digests> digests = new HashMap<Integer, Digests>();
+
+    /**
+     * @return the configured cache, or null if no digests are to be computed
+     */
+    public static synchronized DigestCache getInstance()
+    {
+        if (!initialised)
+        {
+            initialised = true;
+            String algorithms = ConfigurationManager.getProperty("resourcesync", "digest.algorithms");
+            if (algorithms != null && !"".equals(algorithms.trim()))
+            {
+                List<String> names = new ArrayList<String>();
+                for (String algorithm : algorithms.split(","))
+                {
+                    if (!"".equals(algorithm.trim()))
+                    {
+                        names.add(algorithm.trim().toLowerCase());
+                    }
+                }
+                String file = ConfigurationManager.getProperty("resourcesync", "digest.cache.file");
+                instance = new DigestCache(names, file == null || "".equals(file.trim()) ? null : new File(file.trim()));
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param algorithms    the digests to compute, by their ResourceSync names (md5, sha-1, sha-256...)
+     * @param file          the file to keep the digests in, or null to keep them in memory only
+     */
+    public DigestCache(List<String> algorithms, File file)
+    {
+        this.algorithms = new ArrayList<String>();
+        for (String algorithm : algorithms)
+        {
+            try
+            {
+                MessageDigest.getInstance(algorithm);
+                this.algorithms.add(algorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                log.warn("Unsupported digest algorithm " + algorithm + ", ignored");
+            }
+        }
+        this.file = file;
+        if (this.file != null)
+        {
+            this.load();
+        }
+    }
+
+    public List<String> getAlgorithms()
+    {
+        return Collections.unmodifiableList(this.algorithms);
+    }
+
+    /**
+     * @return the digests of the bitstream by algorithm, or null if they have not been computed
+     * for its current content
+     */
+    public synchronized Map<String, String> get(int bitstreamID, String internalID)
+    {
+        Digests known = this.digests.get(bitstreamID);
+        if (known == null || !known.internalID.equals(internalID))
+        {
+            return null;
+        }
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (int i = 0; i < known.algorithms.length; i++)
+        {
+            values.put(known.algorithms[i], known.values[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Start computing the digests of the bitstream, unless they are known already
+     *
+     * @return the computation, to be fed the whole content of the bitstream, or null
+     */
+    public Digester digester(int bitstreamID, String internalID)
+    {
+        if (internalID == null || this.algorithms.isEmpty())
+        {
+            return null;
+        }
+        synchronized (this)
+        {
+            Digests known = this.digests.get(bitstreamID);
+            if (known != null && known.internalID.equals(internalID) &&
+                    known.algorithms.length == this.algorithms.size())
+            {
+                return null;
+            }
+        }
+        return new Digester(bitstreamID, internalID);
+    }
+
+    private synchronized void put(int bitstreamID, Digests computed)
+    {
+        this.digests.put(bitstreamID, computed);
+        if (this.file == null)
+        {
+            return;
+        }
+        try
+        {
+            Writer out = new OutputStreamWriter(new FileOutputStream(this.file, true), StandardCharsets.UTF_8);
+            try
+            {
+                out.write(computed.toLine(bitstreamID));
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to record the digests of bitstream " + bitstreamID + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void load()
+    {
+        if (!this.file.exists())
+        {
+            this.file.getParentFile().mkdirs();
+            return;
+        }
+
+        int lines = 0;
+        try
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8));
+            try
+            {
+                String line = in.readLine();
+                while (line != null)
+                {
+                    lines++;
+                    String[] bits = line.trim().split(" ");
+                    if (bits.length >= 3)
+                    {
+                        try
+                        {
+                            this.digests.put(Integer.parseInt(bits[0]), Digests.parse(bits));
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            // a line cut short by an interrupted write
+                        }
+                    }
+                    line = in.readLine();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to load the digests from " + this.file + ": " + e.getMessage());
+            return;
+        }
+
+        if (lines > 2 * this.digests.size())
+        {
+            this.compact();
+        }
+    }
+
+    /**
+     * Rewrite the log with only the current digests of every bitstream
+     */
+    private void compact()
+    {
+        File tmp = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+        try
+        {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+            try
+            {
+                for (Map.Entry<Integer, Digests> entry : this.digests.entrySet())
+                {
+                    out.write(entry.getValue().toLine(entry.getKey()));
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!tmp.renameTo(this.file))
+            {
+                tmp.delete();
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to compact " + this.file + ": " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Computes the digests of a bitstream from its content, as it goes by
+     */
+    public class Digester
+    {
+        private int bitstreamID;
+        private String internalID;
+        private MessageDigest[] digests;
+
+        private Digester(int bitstreamID, String internalID)
+        {
+            this.bitstreamID = bitstreamID;
+            this.internalID = internalID;
+            this.digests = new MessageDigest[algorithms.size()];
+            for (int i = 0; i < this.digests.length; i++)
+            {
+                try
+                {
+                    this.digests[i] = MessageDigest.getInstance(algorithms.get(i));
+                }
+                catch (NoSuchAlgorithmException e)
+                {
+                    // checked when the cache was created
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        /**
+         * @return the stream, feeding everything read from it to the digests
+         */
+        public InputStream wrap(InputStream in)
+        {
+            InputStream wrapped = in;
+            for (MessageDigest digest : this.digests)
+            {
+                wrapped = new DigestInputStream(wrapped, digest);
+            }
+            return wrapped;
+        }
+
+        public void update(byte[] content, int offset, int length)
+        {
+            for (MessageDigest digest : this.digests)
+            {
+                digest.update(content, offset, length);
+            }
+        }
+
+        /**
+         * Record the digests, once the whole content has gone by
+         */
+        public void done()
+        {
+            Digests computed = new Digests();
+            computed.internalID = this.internalID;
+            computed.algorithms = algorithms.toArray(new String[algorithms.size()]);
+            computed.values = new String[this.digests.length];
+            for (int i = 0; i < this.digests.length; i++)
+            {
+                computed.values[i] = Utils.toHex(this.digests[i].digest());
+            }
+            put(this.bitstreamID, computed);
+        }
+    }
+
+    private static class Digests
+    {
+        private String internalID;
+        private String[] algorithms;
+        private String[] values;
+
+        // <bitstream id> <internal id> <algorithm>:<value> ...
+        private String toLine(int bitstreamID)
+        {
+            StringBuilder line = new StringBuilder();
+            line.append(bitstreamID).append(' ').append(this.internalID);
+            for (int i = 0; i < this.algorithms.length; i++)
+            {
+                line.append(' ').append(this.algorithms[i]).append(':').append(this.values[i]);
+            }
+            return line.append('\n').toString();
+        }
+
+        private static Digests parse(String[] bits)
+        {
+            Digests parsed = new Digests();
+            parsed.internalID = bits[1];
+            parsed.algorithms = new String[bits.length - 2];
+            parsed.values = new String[bits.length - 2];
+            for (int i = 2; i < bits.length; i++)
+            {
+                int colon = bits[i].lastIndexOf(':');
+                if (colon <= 0)
+                {
+                    throw new IllegalArgumentException(bits[i]);
+                }
+                parsed.algorithms[i - 2] = bits[i].substring(0, colon);
+                parsed.values[i - 2] = bits[i].substring(colon + 1);
+            }
+            return parsed;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enumerates the items in a scope from the Discovery search core, using cursorMark deep paging so
+ * that every page costs the same however deep into the results it is.
+ *
+ * The Solr server is passed in by the caller when needed (for instance a stand-in in tests),
+ * otherwise the one configured as search.server in discovery.cfg is used.  That one is shared by
+ * all the enumerators, as HttpSolrServer is thread safe and holds a connection pool that would
+ * otherwise be leaked by every resource list and dump.
+ */
+public class DiscoveryItemEnumerator implements ItemEnumerator
+{
+    private static final String RESOURCE_TYPE_FIELD = "search.resourcetype";
+
+    private static final String RESOURCE_ID_FIELD = "search.resourceid";
+
+    private static final String UNIQUE_ID_FIELD = "search.uniqueid";
+
+    private static SolrServer sharedSolr = null;
+
+    private SolrServer solr;
+    private SolrQuery query;
+    private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    private boolean exhausted = false;
+
+    public DiscoveryItemEnumerator(DSpaceObject scope, int pageSize)
+    {
+        this(getSharedSolr(), scope, pageSize);
+    }
+
+    public DiscoveryItemEnumerator(SolrServer solr, DSpaceObject scope, int pageSize)
+    {
+        this.solr = solr;
+
+        this.query = new SolrQuery(RESOURCE_TYPE_FIELD + ":" + Constants.ITEM);
+        this.query.addFilterQuery("-withdrawn:true");
+        this.query.addFilterQuery("-discoverable:false");
+        if (scope != null && scope.getType() == Constants.COLLECTION)
+        {
+            this.query.addFilterQuery("location.coll:" + scope.getID());
+        }
+        else if (scope != null && scope.getType() == Constants.COMMUNITY)
+        {
+            this.query.addFilterQuery("location.comm:" + scope.getID());
+        }
+        this.query.setFields(RESOURCE_ID_FIELD);
+        this.query.setRows(pageSize);
+        // cursorMark needs a total ordering, which the unique key gives us
+        this.query.setSort(UNIQUE_ID_FIELD, ORDER.asc);
+    }
+
+    public List<Integer> nextPage()
+            throws SQLException
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        if (this.exhausted)
+        {
+            return ids;
+        }
+
+        this.query.set(CursorMarkParams.CURSOR_MARK_PARAM, this.cursorMark);
+        QueryResponse response;
+        try
+        {
+            response = this.solr.query(this.query);
+        }
+        catch (SolrServerException e)
+        {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        for (SolrDocument doc : response.getResults())
+        {
+            ids.add(Integer.valueOf(String.valueOf(doc.getFirstValue(RESOURCE_ID_FIELD))));
+        }
+
+        // the cursor doesn't move any more once we are past the last result
+        String next = response.getNextCursorMark();
+        if (ids.isEmpty() || next == null || next.equals(this.cursorMark))
+        {
+            this.exhausted = true;
+        }
+        this.cursorMark = next;
+        return ids;
+    }
+
+    private static synchronized SolrServer getSharedSolr()
+    {
+        if (sharedSolr == null)
+        {
+            sharedSolr = new HttpSolrServer(ConfigurationManager.getProperty("discovery", "search.server"));
+        }
+        return sharedSolr;
+    }
+}
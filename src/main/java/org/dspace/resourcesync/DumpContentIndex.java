@@ -0,0 +1,59 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.core.ConfigurationManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The bitstreams already stored in a dump, by content, so that a file attached to several items is
+ * only stored once: the manifest entries of the other copies point their path at the first one.
+ *
+ * The content of a bitstream is identified by its DSpace checksum and its size; bitstreams without
+ * a checksum are always stored.  The index is used by the thread writing the dump only, in the
+ * order of the manifest.
+ */
+public class DumpContentIndex
+{
+    private Map<String, String> paths = new HashMap<String, String>();
+
+    /**
+     * @return an index for a new dump, or null if the bitstreams are not to be deduplicated
+     */
+    public static DumpContentIndex getConfigured()
+    {
+        if (!ConfigurationManager.getBooleanProperty("resourcesync", "dump.deduplicate", false))
+        {
+            return null;
+        }
+        return new DumpContentIndex();
+    }
+
+    /**
+     * Record that the bitstream is stored at the given path, unless a bitstream with the same
+     * content is stored already
+     *
+     * @return the path of the bitstream with the same content, or null if the bitstream is to be
+     * stored at the given path
+     */
+    public String claim(PrefetchedBitstream bitstream, String path)
+    {
+        if (bitstream.getChecksum() == null || bitstream.getChecksumAlgorithm() == null)
+        {
+            return null;
+        }
+        String key = bitstream.getChecksumAlgorithm().toLowerCase() + ":" + bitstream.getChecksum() + ":" + bitstream.getSize();
+        String existing = this.paths.get(key);
+        if (existing != null)
+        {
+            return existing;
+        }
+        this.paths.put(key, path);
+        return null;
+    }
+}
@@ -16,6 +16,7 @@ public class FileNames
     public static String resourceSyncDocument = "sourcedescription.xml";
     public static String resourceSyncDocumentIndex = "sourcedescriptionindex.xml";
     public static String resourceList = "resourcelist.xml";
+    public static String resourceListIndex = "resourcelist-index.xml";
     public static String resourceDumpZip = "resourcedump.zip";
     public static String resourceDump = "resourcedump.xml";
     public static String capabilityList = "capabilitylist.xml";
@@ -25,6 +26,21 @@ public class FileNames
     public static String changeListArchive = "changelistindex.xml";
     public static String dumpResourcesDir = "resources";
     
+    public static String resourceListPart(int part)
+    {
+        return String.format("resourcelist_%04d.xml", part);
+    }
+
+    public static String resourceDumpPart(int part)
+    {
+        return String.format("resourcedump_part%04d.zip", part);
+    }
+
+    public static boolean isResourceDumpPart(File file)
+    {
+        return file.getName().startsWith("resourcedump_part") && file.getName().endsWith(".zip");
+    }
+
     public static String changeList(String dateString)
     {
         return "changelist_" + dateString + ".xml";
@@ -0,0 +1,34 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enumerates a list of item ids which is already known, a page at a time; used to generate a
+ * document for a given share of the items of a scope, such as one part of a resource dump.
+ */
+public class FixedItemEnumerator implements ItemEnumerator
+{
+    private List<Integer> itemIDs;
+    private int pageSize;
+    private int position = 0;
+
+    public FixedItemEnumerator(List<Integer> itemIDs, int pageSize)
+    {
+        this.itemIDs = itemIDs;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public List<Integer> nextPage()
+    {
+        int end = Math.min(this.position + this.pageSize, this.itemIDs.size());
+        List<Integer> page = new ArrayList<Integer>(this.itemIDs.subList(this.position, end));
+        this.position = end;
+        return page;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the generation of a document as a pipeline: the items are enumerated a page at a time,
+ * the pages are built (database access, url building and metadata rendering) concurrently by a
+ * pool of workers, each with its own DSpace context, and the built pages are written out by the
+ * calling thread in the order they were enumerated, so the output is the same as a sequential run.
+ *
+ * At most queue-size pages are in flight at any time; the enumeration waits for the oldest one
+ * to be written before going on.
+ */
+public class GenerationPipeline
+{
+    /**
+     * Builds the output for a page of items, in a worker thread
+     */
+    public interface PageBuilder
+    {
+        PageBuffer build(Context context, List<Integer> itemIDs)
+                throws SQLException, IOException;
+    }
+
+    /**
+     * Writes the output of a page, in the calling thread
+     */
+    public interface PageWriter
+    {
+        void write(PageBuffer page)
+                throws SQLException, IOException;
+    }
+
+    private int workers;
+    private int queueSize;
+
+    public GenerationPipeline(int workers, int queueSize)
+    {
+        this.workers = workers;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * @return the configured number of workers; 0 means the pipeline is not to be used
+     */
+    public static int getConfiguredWorkers()
+    {
+        return ConfigurationManager.getIntProperty("resourcesync", "pipeline.workers", 0);
+    }
+
+    /**
+     * @return a pipeline with the configured number of workers and queue size
+     */
+    public static GenerationPipeline getConfiguredPipeline()
+    {
+        int workers = getConfiguredWorkers();
+        int queueSize = ConfigurationManager.getIntProperty("resourcesync", "pipeline.queue-size", workers * 2);
+        return new GenerationPipeline(workers, queueSize);
+    }
+
+    public void run(ItemEnumerator enumerator, final PageBuilder builder, PageWriter writer)
+            throws SQLException, IOException
+    {
+        final List<Context> contexts = Collections.synchronizedList(new ArrayList<Context>());
+        final ThreadLocal<Context> workerContext = new ThreadLocal<Context>();
+        ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+        Deque<Future<PageBuffer>> inFlight = new ArrayDeque<Future<PageBuffer>>();
+        try
+        {
+            List<Integer> page = enumerator.nextPage();
+            while (!page.isEmpty())
+            {
+                final List<Integer> itemIDs = page;
+                inFlight.add(executor.submit(() -> {
+                    Context context = workerContext.get();
+                    if (context == null)
+                    {
+                        context = new Context();
+                        workerContext.set(context);
+                        contexts.add(context);
+                    }
+                    PageBuffer buffer = builder.build(context, itemIDs);
+                    // nothing loaded for the page is needed any more
+                    new ContextCacheEvictor(context).pageDone();
+                    return buffer;
+                }));
+
+                while (inFlight.size() >= this.queueSize)
+                {
+                    writer.write(this.take(inFlight.removeFirst()));
+                }
+                page = enumerator.nextPage();
+            }
+
+            while (!inFlight.isEmpty())
+            {
+                writer.write(this.take(inFlight.removeFirst()));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            try
+            {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            for (Context context : contexts)
+            {
+                context.abort();
+            }
+        }
+    }
+
+    private PageBuffer take(Future<PageBuffer> future)
+            throws SQLException, IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+            {
+                throw (SQLException) cause;
+            }
+            else if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Source of the items to describe in a resource list or resource dump.  Implementations return
+ * the ids of the archived items in a scope a page at a time; which one is used is set by the
+ * enumerator option in resourcesync.cfg.
+ *
+ * @see KeysetItemEnumerator
+ * @see BrowseItemEnumerator
+ * @see DiscoveryItemEnumerator
+ */
+public interface ItemEnumerator
+{
+    /**
+     * Get the ids of the next page of items
+     *
+     * @return the item ids, or an empty list when all the items have been enumerated
+     */
+    List<Integer> nextPage()
+            throws SQLException;
+}
@@ -0,0 +1,237 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Item;
+import org.dspace.content.ItemIterator;
+import org.dspace.content.MetadataField;
+import org.dspace.content.MetadataSchema;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything needed to describe a page of items in a ResourceSync document, loaded with a handful
+ * of queries for the whole page rather than a few queries for every item, bundle and bitstream.
+ *
+ * This holds the items themselves, the handles of the collections (and optionally of all the
+ * communities) they belong to, and their bitstreams together with the name of the bundle they are
+ * in and their format.
+ */
+public class ItemPrefetch
+{
+    private static final String COLLECTIONS_QUERY =
+            "SELECT c2i.item_id, h.handle FROM collection2item c2i, handle h " +
+            "WHERE h.resource_type_id = " + Constants.COLLECTION + " AND h.resource_id = c2i.collection_id " +
+            "AND c2i.item_id IN ";
+
+    private static final String COMMUNITIES_QUERY =
+            "SELECT c2i.item_id, h.handle FROM communities2item c2i, handle h " +
+            "WHERE h.resource_type_id = " + Constants.COMMUNITY + " AND h.resource_id = c2i.community_id " +
+            "AND c2i.item_id IN ";
+
+    // bundle and bitstream names are held as dc.title metadata
+    private static final String BITSTREAMS_QUERY =
+            "SELECT i2b.item_id, bundle_name.text_value AS bundle_name, bs.bitstream_id, bs.sequence_id, " +
+            "bs.size_bytes, bs.checksum, bs.checksum_algorithm, bs.internal_id, bfr.mimetype, bs_name.text_value AS name " +
+            "FROM item2bundle i2b " +
+            "JOIN bundle2bitstream b2b ON b2b.bundle_id = i2b.bundle_id " +
+            "JOIN bitstream bs ON bs.bitstream_id = b2b.bitstream_id " +
+            "LEFT JOIN bitstreamformatregistry bfr ON bfr.bitstream_format_id = bs.bitstream_format_id " +
+            "LEFT JOIN metadatavalue bundle_name ON bundle_name.resource_id = i2b.bundle_id " +
+            "AND bundle_name.resource_type_id = " + Constants.BUNDLE + " AND bundle_name.metadata_field_id = ? " +
+            "LEFT JOIN metadatavalue bs_name ON bs_name.resource_id = bs.bitstream_id " +
+            "AND bs_name.resource_type_id = " + Constants.BITSTREAM + " AND bs_name.metadata_field_id = ? " +
+            "WHERE bs.deleted = '0' AND i2b.item_id IN ";
+
+    private static final String ORDER_BITSTREAMS = " ORDER BY i2b.item_id, i2b.bundle_id, b2b.bitstream_order";
+
+    private Map<Integer, Item> items = new HashMap<Integer, Item>();
+    private Map<Integer, List<String>> collections = new HashMap<Integer, List<String>>();
+    private Map<Integer, List<String>> communities = new HashMap<Integer, List<String>>();
+    private Map<Integer, List<PrefetchedBitstream>> bitstreams = new HashMap<Integer, List<PrefetchedBitstream>>();
+
+    private ItemPrefetch()
+    {
+    }
+
+    /**
+     * Load the data for the given items
+     *
+     * @param context       the DSpace context
+     * @param itemIDs       the ids of the items
+     * @param communities   whether to also load the handles of all the communities of the items
+     */
+    public static ItemPrefetch load(Context context, List<Integer> itemIDs, boolean communities)
+            throws SQLException
+    {
+        ItemPrefetch prefetch = new ItemPrefetch();
+        if (itemIDs.isEmpty())
+        {
+            return prefetch;
+        }
+        String in = inClause(itemIDs);
+
+        ItemIterator ii = new ItemIterator(context,
+                DatabaseManager.queryTable(context, "item", "SELECT * FROM item WHERE item_id IN " + in));
+        try
+        {
+            while (ii.hasNext())
+            {
+                Item item = ii.next();
+                prefetch.items.put(item.getID(), item);
+            }
+        }
+        finally
+        {
+            ii.close();
+        }
+
+        loadHandles(context, COLLECTIONS_QUERY + in, prefetch.collections);
+        if (communities)
+        {
+            loadHandles(context, COMMUNITIES_QUERY + in, prefetch.communities);
+        }
+
+        int titleField = getTitleFieldID(context);
+        TableRowIterator tri = DatabaseManager.query(context, BITSTREAMS_QUERY + in + ORDER_BITSTREAMS,
+                titleField, titleField);
+        try
+        {
+            while (tri.hasNext())
+            {
+                TableRow row = tri.next();
+                PrefetchedBitstream bs = new PrefetchedBitstream(
+                        row.getIntColumn("bitstream_id"),
+                        row.getIntColumn("sequence_id"),
+                        row.getStringColumn("name"),
+                        row.getLongColumn("size_bytes"),
+                        row.getStringColumn("checksum"),
+                        row.getStringColumn("checksum_algorithm"),
+                        row.getStringColumn("internal_id"),
+                        row.getStringColumn("mimetype"),
+                        row.getStringColumn("bundle_name"));
+                add(prefetch.bitstreams, row.getIntColumn("item_id"), bs);
+            }
+        }
+        finally
+        {
+            tri.close();
+        }
+
+        return prefetch;
+    }
+
+    public Item getItem(int itemID)
+    {
+        return items.get(itemID);
+    }
+
+    /**
+     * @return the handles of the collections the item is in
+     */
+    public List<String> getCollectionHandles(int itemID)
+    {
+        return get(collections, itemID);
+    }
+
+    /**
+     * @return the handles of all the communities the item is in, including the ancestors of the
+     * communities owning its collections; empty unless the communities were requested
+     */
+    public List<String> getCommunityHandles(int itemID)
+    {
+        return get(communities, itemID);
+    }
+
+    /**
+     * @return the bitstreams of the item, across all of its bundles, in the order of Item.getBundles()
+     */
+    public List<PrefetchedBitstream> getBitstreams(int itemID)
+    {
+        return get(bitstreams, itemID);
+    }
+
+    private static <T> List<T> get(Map<Integer, List<T>> map, int itemID)
+    {
+        List<T> values = map.get(itemID);
+        if (values == null)
+        {
+            return Collections.emptyList();
+        }
+        return values;
+    }
+
+    private static <T> void add(Map<Integer, List<T>> map, int itemID, T value)
+    {
+        List<T> values = map.get(itemID);
+        if (values == null)
+        {
+            values = new ArrayList<T>();
+            map.put(itemID, values);
+        }
+        values.add(value);
+    }
+
+    private static void loadHandles(Context context, String query, Map<Integer, List<String>> handles)
+            throws SQLException
+    {
+        TableRowIterator tri = DatabaseManager.query(context, query);
+        try
+        {
+            while (tri.hasNext())
+            {
+                TableRow row = tri.next();
+                add(handles, row.getIntColumn("item_id"), row.getStringColumn("handle"));
+            }
+        }
+        finally
+        {
+            tri.close();
+        }
+    }
+
+    private static int getTitleFieldID(Context context)
+            throws SQLException
+    {
+        try
+        {
+            MetadataSchema dc = MetadataSchema.find(context, MetadataSchema.DC_SCHEMA);
+            MetadataField title = MetadataField.findByElement(context, dc.getSchemaID(), "title", null);
+            return title.getFieldID();
+        }
+        catch (AuthorizeException e)
+        {
+            throw new SQLException(e);
+        }
+    }
+
+    // the ids are integers from the database, so they can safely be inlined
+    private static String inClause(List<Integer> ids)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < ids.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(",");
+            }
+            sb.append(ids.get(i).intValue());
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.content.DSpaceObject;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enumerates the ids of the archived items in a scope (the whole repository, a community or a
+ * collection) a page at a time, in item id order, straight from the database.
+ *
+ * Each page is requested as "the next n items with an id greater than the last one seen", so
+ * fetching a page costs the same at the end of the archive as at the beginning, unlike offset
+ * paging where the database has to skip over all of the previous pages every time.
+ */
+public class KeysetItemEnumerator implements ItemEnumerator
+{
+    private static final String CONDITIONS = "i.in_archive = '1' AND i.withdrawn = '0' AND i.discoverable = '1' AND i.item_id > ?";
+
+    private Context context;
+    private String query;
+    private Integer scopeID = null;
+    private int pageSize;
+    private int lastID = -1;
+    private boolean exhausted = false;
+
+    /**
+     * @param context   the DSpace context to query the database with
+     * @param scope     the community or collection to enumerate the items of, or null for all
+     *                  the items in the repository
+     * @param pageSize  the number of item ids to return in each page
+     */
+    public KeysetItemEnumerator(Context context, DSpaceObject scope, int pageSize)
+    {
+        this.context = context;
+        this.pageSize = pageSize;
+
+        this.scopeID = getScopeID(scope);
+
+        String ordered = "SELECT i.item_id " + getFrom(scope) + CONDITIONS + " ORDER BY i.item_id";
+        if (DatabaseManager.isOracle())
+        {
+            this.query = "SELECT item_id FROM (" + ordered + ") WHERE ROWNUM <= ?";
+        }
+        else
+        {
+            this.query = ordered + " LIMIT ?";
+        }
+    }
+
+    public List<Integer> nextPage()
+            throws SQLException
+    {
+        List<Integer> ids = new ArrayList<Integer>();
+        if (this.exhausted)
+        {
+            return ids;
+        }
+
+        TableRowIterator tri;
+        if (this.scopeID != null)
+        {
+            tri = DatabaseManager.query(this.context, this.query, this.scopeID, this.lastID, this.pageSize);
+        }
+        else
+        {
+            tri = DatabaseManager.query(this.context, this.query, this.lastID, this.pageSize);
+        }
+        try
+        {
+            while (tri.hasNext())
+            {
+                TableRow row = tri.next();
+                ids.add(row.getIntColumn("item_id"));
+            }
+        }
+        finally
+        {
+            tri.close();
+        }
+
+        if (ids.size() < this.pageSize)
+        {
+            this.exhausted = true;
+        }
+        if (!ids.isEmpty())
+        {
+            this.lastID = ids.get(ids.size() - 1);
+        }
+        return ids;
+    }
+
+    /**
+     * Count the archived items in a scope
+     *
+     * @param scope the community or collection to count the items of, or null for all the items
+     *              in the repository
+     */
+    public static long count(Context context, DSpaceObject scope)
+            throws SQLException
+    {
+        String query = "SELECT COUNT(*) AS num " + getFrom(scope) + CONDITIONS;
+        Integer scopeID = getScopeID(scope);
+        TableRow row = scopeID != null ? DatabaseManager.querySingle(context, query, scopeID, -1) :
+                DatabaseManager.querySingle(context, query, -1);
+        return row == null ? 0 : row.getLongColumn("num");
+    }
+
+    private static String getFrom(DSpaceObject scope)
+    {
+        if (scope != null && scope.getType() == Constants.COLLECTION)
+        {
+            return "FROM item i, collection2item c2i WHERE c2i.item_id = i.item_id AND c2i.collection_id = ? AND ";
+        }
+        else if (scope != null && scope.getType() == Constants.COMMUNITY)
+        {
+            // communities2item maps items to all the communities above them, not just the parent
+            return "FROM item i, communities2item c2i WHERE c2i.item_id = i.item_id AND c2i.community_id = ? AND ";
+        }
+        return "FROM item i WHERE ";
+    }
+
+    private static Integer getScopeID(DSpaceObject scope)
+    {
+        if (scope != null && (scope.getType() == Constants.COLLECTION || scope.getType() == Constants.COMMUNITY))
+        {
+            return scope.getID();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of the metadata exports produced by the dissemination crosswalks, so that items
+ * which have not changed are not crosswalked again for every dump and every request.
+ *
+ * An export is stored under the id of the item, the format prefix, the variant of the output (see
+ * MetadataDisseminator) and the last modified date of the item, so a modified item is never served
+ * a stale export, nor is an export made with another crosswalk configuration or output mode.  The exports of an item are also
+ * dropped by {@link #invalidate(int)} when the item changes (see ResourceSyncConsumer), and the
+ * least recently used exports are deleted once the cache grows beyond its maximum size.
+ *
+ * The exports already on disk are only registered when the cache is first read or written, so that
+ * invalidating the exports of an item (from the submission thread) never lists the cache directory.
+ * The recency of use is only tracked within this JVM; the cache directory may be shared by the
+ * command line tools and the webapp, and an export deleted by another of them is simply a miss.
+ */
+public class MetadataCache
+{
+    private static Logger log = Logger.getLogger(MetadataCache.class);
+
+    private static MetadataCache instance = null;
+    private static boolean initialised = false;
+
+    private File dir;
+    private long maxBytes;
+    private long bytes = 0;
+    private boolean scanned = false;
+
+    // the relative path of every export with its size, in order of use
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private Map<Integer, List<String>> byItem = new HashMap<Integer, List<String>>();
+
+    /**
+     * @return the configured cache, or null if the exports are not to be cached
+     */
+    public static synchronized MetadataCache getInstance()
+    {
+        if (!initialised)
+        {
+            initialised = true;
+            String dir = ConfigurationManager.getProperty("resourcesync", "metadata.cache.dir");
+            if (dir != null && !"".equals(dir.trim()))
+            {
+                long maxSize = ConfigurationManager.getLongProperty("resourcesync", "metadata.cache.max-size", 1024L);
+                instance = new MetadataCache(new File(dir.trim()), maxSize * 1024 * 1024);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param dir       the directory to keep the exports in
+     * @param maxBytes  the total size of the exports to keep
+     */
+    public MetadataCache(File dir, long maxBytes)
+    {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.dir.mkdirs();
+    }
+
+    /**
+     * Copy the cached export to the given stream, if there is one
+     *
+     * @return true if the export was in the cache and has been copied
+     */
+    public boolean copyTo(int itemID, String formatPrefix, String variant, Date lastModified, OutputStream out)
+            throws IOException
+    {
+        if (lastModified == null)
+        {
+            return false;
+        }
+        String key = getKey(itemID, formatPrefix, variant, lastModified);
+        synchronized (this)
+        {
+            this.scan();
+            // looking it up marks it as used
+            if (this.entries.get(key) == null)
+            {
+                return false;
+            }
+        }
+
+        InputStream in;
+        try
+        {
+            in = new FileInputStream(new File(this.dir, key));
+        }
+        catch (FileNotFoundException e)
+        {
+            // evicted by another process
+            synchronized (this)
+            {
+                this.remove(itemID, key);
+            }
+            return false;
+        }
+        try
+        {
+            CopyBuffers.copy(in, out);
+        }
+        finally
+        {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Store the export of an item, replacing any export of it in the same format for another date
+     * or variant
+     */
+    public void put(int itemID, String formatPrefix, String variant, Date lastModified, byte[] content)
+    {
+        if (lastModified == null)
+        {
+            return;
+        }
+        String key = getKey(itemID, formatPrefix, variant, lastModified);
+        File file = new File(this.dir, key);
+        try
+        {
+            // written aside and renamed, so that readers never see a partial export
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try
+            {
+                out.write(content);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+            {
+                tmp.delete();
+                return;
+            }
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to cache the " + formatPrefix + " export of item " + itemID + ": " + e.getMessage());
+            return;
+        }
+
+        synchronized (this)
+        {
+            this.scan();
+            // older exports of the item in this format will never be asked for again
+            List<String> keys = this.byItem.get(itemID);
+            if (keys != null)
+            {
+                String stale = formatPrefix + "-";
+                for (String other : new ArrayList<String>(keys))
+                {
+                    String name = new File(other).getName();
+                    if (!other.equals(key) && name.startsWith(stale) &&
+                            name.substring(stale.length()).matches("[0-9a-f]+-\\d+\\.xml"))
+                    {
+                        this.remove(itemID, other);
+                        new File(this.dir, other).delete();
+                    }
+                }
+            }
+            this.add(itemID, key, content.length);
+            this.evict();
+        }
+    }
+
+    /**
+     * Drop all the exports of the item.  This does not register the exports already on disk.
+     */
+    public void invalidate(int itemID)
+    {
+        synchronized (this)
+        {
+            List<String> keys = this.byItem.get(itemID);
+            if (keys != null)
+            {
+                for (String key : new ArrayList<String>(keys))
+                {
+                    this.remove(itemID, key);
+                }
+            }
+        }
+        try
+        {
+            FileUtils.deleteDirectory(new File(this.dir, getItemPath(itemID)));
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to invalidate the cached exports of item " + itemID + ": " + e.getMessage());
+        }
+    }
+
+    private void add(int itemID, String key, long size)
+    {
+        Long previous = this.entries.put(key, size);
+        if (previous != null)
+        {
+            this.bytes -= previous;
+        }
+        else
+        {
+            List<String> keys = this.byItem.get(itemID);
+            if (keys == null)
+            {
+                keys = new ArrayList<String>();
+                this.byItem.put(itemID, keys);
+            }
+            keys.add(key);
+        }
+        this.bytes += size;
+    }
+
+    private void remove(int itemID, String key)
+    {
+        Long size = this.entries.remove(key);
+        if (size != null)
+        {
+            this.bytes -= size;
+        }
+        List<String> keys = this.byItem.get(itemID);
+        if (keys != null)
+        {
+            keys.remove(key);
+            if (keys.isEmpty())
+            {
+                this.byItem.remove(itemID);
+            }
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> it = this.entries.entrySet().iterator();
+        while (this.bytes > this.maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            String key = eldest.getKey();
+            it.remove();
+            this.bytes -= eldest.getValue();
+
+            int itemID = Integer.parseInt(new File(key).getParentFile().getName());
+            List<String> keys = this.byItem.get(itemID);
+            if (keys != null)
+            {
+                keys.remove(key);
+                if (keys.isEmpty())
+                {
+                    this.byItem.remove(itemID);
+                }
+            }
+            new File(this.dir, key).delete();
+        }
+    }
+
+    /**
+     * Register the exports already on disk, the least recently written first, the first time the
+     * cache is used
+     */
+    private synchronized void scan()
+    {
+        if (this.scanned)
+        {
+            return;
+        }
+        this.scanned = true;
+
+        List<File> files = new ArrayList<File>();
+        File[] buckets = this.dir.listFiles();
+        if (buckets == null)
+        {
+            return;
+        }
+        for (File bucket : buckets)
+        {
+            File[] items = bucket.listFiles();
+            if (items == null)
+            {
+                continue;
+            }
+            for (File item : items)
+            {
+                File[] exports = item.listFiles();
+                if (exports != null)
+                {
+                    files.addAll(Arrays.asList(exports));
+                }
+            }
+        }
+
+        files.sort(new Comparator<File>()
+        {
+            public int compare(File f1, File f2)
+            {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        for (File file : files)
+        {
+            // left over from an interrupted write
+            if (file.getName().endsWith(".tmp"))
+            {
+                file.delete();
+                continue;
+            }
+            File item = file.getParentFile();
+            try
+            {
+                int itemID = Integer.parseInt(item.getName());
+                this.add(itemID, item.getParentFile().getName() + "/" + item.getName() + "/" + file.getName(), file.length());
+            }
+            catch (NumberFormatException e)
+            {
+                // not one of ours
+            }
+        }
+        this.evict();
+    }
+
+    // the exports are spread over 256 directories, so that none of them gets too big
+    private static String getItemPath(int itemID)
+    {
+        return String.format("%02x", itemID & 0xff) + "/" + itemID;
+    }
+
+    private static String getKey(int itemID, String formatPrefix, String variant, Date lastModified)
+    {
+        return getItemPath(itemID) + "/" + formatPrefix + "-" + variant + "-" + lastModified.getTime() + ".xml";
+    }
+}
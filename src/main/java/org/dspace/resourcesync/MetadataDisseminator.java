@@ -9,15 +9,25 @@ import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.Item;
 import org.dspace.content.crosswalk.CrosswalkException;
 import org.dspace.content.crosswalk.DisseminationCrosswalk;
+import org.dspace.core.ConfigurationManager;
 import org.dspace.core.PluginManager;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Richard Jones
@@ -25,16 +35,118 @@ import java.sql.SQLException;
  */
 public class MetadataDisseminator
 {
+    // pretty printing makes the exports much bigger, and slower to produce
+    private static final boolean compact = ConfigurationManager.getBooleanProperty("resourcesync", "metadata.compact", false);
+
+    private static ThreadLocal<Map<String, DisseminationCrosswalk>> crosswalks = new ThreadLocal<Map<String, DisseminationCrosswalk>>()
+    {
+        @Override
+        protected Map<String, DisseminationCrosswalk> initialValue()
+        {
+            return new HashMap<String, DisseminationCrosswalk>();
+        }
+    };
+
+    // the variant of the output of every format, computed once
+    private static Map<String, String> variants = new ConcurrentHashMap<String, String>();
+
+    // an XMLOutputter keeps state while it writes, so every thread has its own
+    private static ThreadLocal<XMLOutputter> outputter = new ThreadLocal<XMLOutputter>()
+    {
+        @Override
+        protected XMLOutputter initialValue()
+        {
+            return new XMLOutputter(compact ? Format.getCompactFormat() : Format.getPrettyFormat());
+        }
+    };
+
+    /**
+     * Write the export of the item in the given format, from the metadata cache if it is enabled
+     * and holds an export for the current version of the item
+     */
     public static void disseminate(Item item, String formatPrefix, OutputStream os)
             throws IOException, CrosswalkException, AuthorizeException, SQLException
     {
-        DisseminationCrosswalk dc = (DisseminationCrosswalk) PluginManager.getNamedPlugin(DisseminationCrosswalk.class, formatPrefix);
-        Element element = dc.disseminateElement(item);
+        MetadataCache cache = MetadataCache.getInstance();
+        if (cache == null)
+        {
+            render(item, formatPrefix, os);
+            return;
+        }
+
+        Date lastModified = item.getLastModified();
+        String variant = getVariant(formatPrefix);
+        if (cache.copyTo(item.getID(), formatPrefix, variant, lastModified, os))
+        {
+            return;
+        }
+
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        render(item, formatPrefix, export);
+        cache.put(item.getID(), formatPrefix, variant, lastModified, export.toByteArray());
+        export.writeTo(os);
+    }
+
+    private static void render(Item item, String formatPrefix, OutputStream os)
+            throws IOException, CrosswalkException, AuthorizeException, SQLException
+    {
+        Element element = getCrosswalk(formatPrefix).disseminateElement(item);
 
         // serialise the element out to the zip output stream
         element.detach();
         Document doc = new Document(element);
-        XMLOutputter out = new XMLOutputter(Format.getPrettyFormat());
-        out.output(doc, os);
+        outputter.get().output(doc, os);
+    }
+
+    /**
+     * Get the crosswalk for the prefix, looking it up only once in every thread; crosswalks are not
+     * required to be thread safe, so they are never shared between threads
+     */
+    private static DisseminationCrosswalk getCrosswalk(String formatPrefix)
+    {
+        Map<String, DisseminationCrosswalk> cached = crosswalks.get();
+        DisseminationCrosswalk dc = cached.get(formatPrefix);
+        if (dc == null)
+        {
+            dc = (DisseminationCrosswalk) PluginManager.getNamedPlugin(DisseminationCrosswalk.class, formatPrefix);
+            cached.put(formatPrefix, dc);
+        }
+        return dc;
+    }
+
+    /**
+     * A fingerprint of the way the exports in the format are produced: the output mode, the class
+     * of the crosswalk and the crosswalk.* configuration.  The cached exports are stored under it,
+     * so that changing any of these never serves exports made the old way.
+     */
+    private static String getVariant(String formatPrefix)
+    {
+        String variant = variants.get(formatPrefix);
+        if (variant == null)
+        {
+            StringBuilder sb = new StringBuilder(compact ? "compact" : "pretty");
+            DisseminationCrosswalk dc = getCrosswalk(formatPrefix);
+            sb.append('|').append(dc == null ? "" : dc.getClass().getName());
+
+            List<String> keys = new ArrayList<String>();
+            Enumeration<?> names = ConfigurationManager.propertyNames();
+            while (names.hasMoreElements())
+            {
+                String name = (String) names.nextElement();
+                if (name.startsWith("crosswalk."))
+                {
+                    keys.add(name);
+                }
+            }
+            Collections.sort(keys);
+            for (String key : keys)
+            {
+                sb.append('|').append(key).append('=').append(ConfigurationManager.getProperty(key));
+            }
+
+            variant = Integer.toHexString(sb.toString().hashCode());
+            variants.put(formatPrefix, variant);
+        }
+        return variant;
     }
 }
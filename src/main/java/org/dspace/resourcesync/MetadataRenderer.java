@@ -0,0 +1,127 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the metadata exports of items through their dissemination crosswalks on a pool of
+ * threads, into buffers taken from a {@link BufferPool}.
+ *
+ * Every thread has its own DSpace context and loads the item again by id, as items (and the
+ * crosswalks using them) must not be shared between threads.  The buffer returned by a rendering
+ * should be handed back with {@link #release(ByteArrayOutputStream)} once it has been written out.
+ */
+public class MetadataRenderer implements Closeable
+{
+    private ExecutorService executor;
+    private BufferPool buffers;
+    private ThreadLocal<Context> workerContext = new ThreadLocal<Context>();
+    private List<Context> contexts = Collections.synchronizedList(new ArrayList<Context>());
+
+    public MetadataRenderer(int threads)
+    {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.buffers = new BufferPool(threads * 4, 1024 * 1024);
+    }
+
+    /**
+     * @return the configured number of rendering threads; 0 means the exports are rendered by the
+     * thread writing the dump
+     */
+    public static int getConfiguredThreads()
+    {
+        return ConfigurationManager.getIntProperty("resourcesync", "metadata.render-threads", 0);
+    }
+
+    /**
+     * @return a renderer with the configured number of threads, or null if rendering is not to be
+     * done concurrently
+     */
+    public static MetadataRenderer getConfiguredRenderer()
+    {
+        int threads = getConfiguredThreads();
+        if (threads <= 0)
+        {
+            return null;
+        }
+        return new MetadataRenderer(threads);
+    }
+
+    /**
+     * Render the export of the given item in the given format
+     *
+     * @return the rendering, which completes with the buffer holding the export
+     */
+    public Future<ByteArrayOutputStream> render(final int itemID, final String formatPrefix)
+    {
+        return this.executor.submit(() -> {
+            Context context = workerContext.get();
+            if (context == null)
+            {
+                context = new Context();
+                workerContext.set(context);
+                contexts.add(context);
+            }
+
+            Item item = Item.find(context, itemID);
+            ByteArrayOutputStream buffer = buffers.acquire();
+            try
+            {
+                MetadataDisseminator.disseminate(item, formatPrefix, buffer);
+            }
+            catch (Exception e)
+            {
+                buffers.release(buffer);
+                throw e;
+            }
+            finally
+            {
+                item.decache();
+            }
+            return buffer;
+        });
+    }
+
+    /**
+     * Hand back the buffer of a rendering which has been written out
+     */
+    public void release(ByteArrayOutputStream buffer)
+    {
+        this.buffers.release(buffer);
+    }
+
+    public void close()
+            throws IOException
+    {
+        this.executor.shutdownNow();
+        try
+        {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Context context : this.contexts)
+        {
+            context.abort();
+        }
+    }
+}
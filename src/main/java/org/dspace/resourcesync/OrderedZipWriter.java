@@ -0,0 +1,711 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Item;
+import org.dspace.content.crosswalk.CrosswalkException;
+import org.dspace.core.Context;
+import org.openarchives.resourcesync.ResourceSyncDocument;
+import org.openarchives.resourcesync.ResourceSyncEntry;
+import org.openarchives.resourcesync.URL;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Appends the content files of a dump to its zip, in the order they are added, while the metadata
+ * exports are rendered concurrently by a {@link MetadataRenderer}.
+ *
+ * Entries are queued until everything before them has been written; whenever more than maxPending
+ * entries are waiting, the writer blocks on the oldest one, which bounds the memory held by
+ * renderings that are complete but cannot be written yet.  Without a renderer every entry is
+ * written as soon as it is added, as before.
+ *
+ * Given a {@link ParallelZipAssembler} instead of a zip stream, the files are handed over to it as
+ * they are added, to be produced and compressed concurrently.
+ *
+ * An entry opened with {@link #openEntry(String, String)}, such as the manifest of a dump, is
+ * written while further files are being added, and takes its place in the zip when it is closed,
+ * after them.  On a zip stream its content goes to a temporary file in the work directory (see
+ * {@link ParallelZipAssembler#getConfiguredWorkDir()}) in the meantime, which is copied into the
+ * zip when the entry is closed, so that the files themselves are written to the zip as they come.
+ *
+ * The entries of the documents describing the files, such as the manifest, can be queued behind the
+ * files (see {@link #createManifest(ResourceSyncDocument, OutputStream)}): they are only added to
+ * their document once the files added before them have been written, so that the entries of the
+ * bitstreams carry the digests of the {@link DigestCache} computed while copying them.
+ *
+ * With a {@link BitstreamReadAhead}, the bitstreams waiting to be written are read into memory
+ * while the files before them are compressed, within the space the read-ahead allows.
+ */
+public class OrderedZipWriter
+{
+    private static Logger log = Logger.getLogger(OrderedZipWriter.class);
+
+    private ZipOutputStream zos;
+    private Context context;
+    private MetadataRenderer renderer;
+    private ZipCompressionPolicy policy;
+    private ParallelZipAssembler assembler = null;
+    private int maxPending;
+    private Deque<Pending> pending = new ArrayDeque<Pending>();
+    private BitstreamReadAhead readAhead = null;
+
+    /**
+     * @param zos           the zip to write to
+     * @param context       the context to retrieve bitstreams with
+     * @param renderer      the renderer for metadata exports, or null to render them in place
+     * @param policy        how to compress the files
+     * @param maxPending    the number of entries which may be waiting to be written
+     */
+    public OrderedZipWriter(ZipOutputStream zos, Context context, MetadataRenderer renderer,
+                            ZipCompressionPolicy policy, int maxPending)
+    {
+        this.zos = zos;
+        this.context = context;
+        this.renderer = renderer;
+        this.policy = policy;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * A writer handing the files over to an assembler, which compresses them concurrently and
+     * writes the zip once they are all done
+     *
+     * @param maxPending    the number of document entries which may be waiting for their files
+     */
+    public OrderedZipWriter(ParallelZipAssembler assembler, MetadataRenderer renderer, ZipCompressionPolicy policy,
+                            int maxPending)
+    {
+        this(null, null, renderer, policy, maxPending);
+        this.assembler = assembler;
+    }
+
+    /**
+     * Read the bitstreams ahead of writing them; only used when writing to a zip stream
+     */
+    public void setReadAhead(BitstreamReadAhead readAhead)
+    {
+        this.readAhead = readAhead;
+    }
+
+    public MetadataRenderer getRenderer()
+    {
+        return renderer;
+    }
+
+    /**
+     * Open an entry whose content is written through the returned stream while more files are
+     * added; closing the stream completes the entry, which comes after all the files added until
+     * then.  Only one entry may be open at a time.
+     */
+    public OutputStream openEntry(String entryName, String mimeType)
+            throws IOException
+    {
+        if (this.assembler != null)
+        {
+            return this.assembler.openEntry(entryName, mimeType);
+        }
+
+        File file = File.createTempFile("resourcesync-", ".entry", ParallelZipAssembler.getConfiguredWorkDir());
+        return new DeferredEntryStream(entryName, mimeType, file);
+    }
+
+    /**
+     * @return a resource list streamed to the given output, whose entries are queued behind the
+     * files added to the zip until then; closing it writes out everything added before
+     */
+    public StreamingResourceList createManifest(ResourceSyncDocument header, OutputStream out)
+            throws IOException
+    {
+        return new Manifest(header, out);
+    }
+
+    /**
+     * Add the entry to the document once the files added before it have been written
+     */
+    public void addDocumentEntry(ResourceSyncDocument document, ResourceSyncEntry entry)
+            throws IOException
+    {
+        this.enqueue(new Pending(document, entry));
+    }
+
+    /**
+     * Add the export of the item in the given format
+     */
+    public void addMetadata(String entryName, Item item, String formatPrefix, String mimeType)
+            throws IOException
+    {
+        if (this.renderer != null || this.assembler != null)
+        {
+            this.addMetadata(entryName, item.getID(), formatPrefix, mimeType);
+            return;
+        }
+
+        this.flush();
+        this.disseminate(entryName, item, formatPrefix, mimeType);
+    }
+
+    /**
+     * Add the export of the item with the given id in the given format
+     */
+    public void addMetadata(String entryName, final int itemID, final String formatPrefix, String mimeType)
+            throws IOException
+    {
+        if (this.renderer != null)
+        {
+            this.addRendering(entryName, this.renderer.render(itemID, formatPrefix), mimeType);
+            return;
+        }
+        if (this.assembler != null)
+        {
+            // rendered by the compressing thread, with its own context
+            this.assembler.addEntry(entryName, mimeType, -1, (context, out) -> {
+                Item it = Item.find(context, itemID);
+                try
+                {
+                    MetadataDisseminator.disseminate(it, formatPrefix, out);
+                }
+                finally
+                {
+                    it.decache();
+                }
+            });
+            return;
+        }
+
+        this.flush();
+        try
+        {
+            Item item = Item.find(this.context, itemID);
+            if (item == null)
+            {
+                return;
+            }
+            try
+            {
+                this.disseminate(entryName, item, formatPrefix, mimeType);
+            }
+            finally
+            {
+                item.decache();
+            }
+        }
+        catch (SQLException e)
+        {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Add an export which is being rendered by the renderer
+     */
+    public void addRendering(String entryName, Future<ByteArrayOutputStream> rendering, String mimeType)
+            throws IOException
+    {
+        this.enqueue(new Pending(entryName, mimeType, -1, null, rendering, -1));
+    }
+
+    /**
+     * Add a file whose content is already known
+     */
+    public void addContent(String entryName, byte[] content, String mimeType)
+            throws IOException
+    {
+        this.enqueue(new Pending(entryName, mimeType, content.length, content, null, -1));
+    }
+
+    /**
+     * Add a copy of the bitstream, which is retrieved when its turn comes; the digests of the
+     * {@link DigestCache} are computed as it is copied, unless they are known already, in which
+     * case the entry describing it has them too
+     *
+     * @param url   the entry describing the bitstream, given the digests once they are computed,
+     *              or null
+     */
+    public void addBitstream(String entryName, PrefetchedBitstream bitstream, URL url)
+            throws IOException
+    {
+        Pending entry = new Pending(entryName, bitstream.getMIMEType(), bitstream.getSize(), null, null, bitstream.getID());
+        entry.internalID = bitstream.getInternalID();
+        DigestCache digests = DigestCache.getInstance();
+        if (url != null && digests != null && digests.get(bitstream.getID(), bitstream.getInternalID()) == null)
+        {
+            entry.bitstream = bitstream;
+            entry.url = url;
+        }
+        this.enqueue(entry);
+    }
+
+    /**
+     * Add a file of a previous zip, copied without being decompressed; only possible when writing
+     * through an assembler
+     */
+    public void addRaw(String entryName, PreviousDump.RawEntry raw)
+    {
+        if (this.assembler == null)
+        {
+            throw new IllegalStateException("Files can only be copied from another zip by an assembler");
+        }
+        this.assembler.addRawEntry(entryName, raw);
+    }
+
+    /**
+     * Write out everything which has been added
+     */
+    public void flush()
+            throws IOException
+    {
+        while (!this.pending.isEmpty())
+        {
+            this.write(this.pending.removeFirst());
+            this.startReadAhead();
+        }
+    }
+
+    private void enqueue(Pending entry)
+            throws IOException
+    {
+        if (this.assembler != null && entry.document == null)
+        {
+            // the assembler keeps the order of the files itself; only the bitstreams whose digests
+            // are to go into their entries are waited for
+            Future<?> compressed = this.assemble(entry);
+            if (entry.url == null)
+            {
+                return;
+            }
+            entry.compressed = compressed;
+        }
+
+        this.pending.addLast(entry);
+        this.startReadAhead();
+
+        // write whatever is ready at the head of the queue, and wait for the oldest entry if too
+        // much is piling up behind it
+        while (!this.pending.isEmpty() &&
+                (this.pending.peekFirst().isReady() || this.pending.size() > this.maxPending))
+        {
+            this.write(this.pending.removeFirst());
+            this.startReadAhead();
+        }
+    }
+
+    /**
+     * Start reading the waiting bitstreams, in order, as far as the read-ahead has space for them
+     */
+    private void startReadAhead()
+    {
+        if (this.readAhead == null)
+        {
+            return;
+        }
+        for (Pending entry : this.pending)
+        {
+            if (entry.bitstreamID < 0 || entry.readAhead != null || !this.readAhead.accepts(entry.size))
+            {
+                continue;
+            }
+            entry.readAhead = this.readAhead.fetch(entry.bitstreamID, entry.internalID, entry.size);
+            if (entry.readAhead == null)
+            {
+                // no space until something has been written
+                return;
+            }
+        }
+    }
+
+    private void disseminate(String entryName, Item item, String formatPrefix, String mimeType)
+            throws IOException
+    {
+        try
+        {
+            this.policy.putNextEntry(this.zos, entryName, mimeType, -1);
+            MetadataDisseminator.disseminate(item, formatPrefix, this.zos);
+            this.zos.closeEntry();
+        }
+        catch (SQLException e)
+        {
+            log.error(e.getMessage(), e);
+        }
+        catch (AuthorizeException e)
+        {
+            log.error(e.getMessage(), e);
+        }
+        catch (CrosswalkException e)
+        {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void write(Pending entry)
+            throws IOException
+    {
+        if (entry.document instanceof Manifest)
+        {
+            ((Manifest) entry.document).write(entry.documentEntry);
+            return;
+        }
+        if (entry.document != null)
+        {
+            entry.document.addEntry(entry.documentEntry);
+            return;
+        }
+
+        if (entry.compressed != null)
+        {
+            this.await(entry.compressed);
+        }
+        else if (entry.content != null)
+        {
+            this.policy.writeEntry(this.zos, entry.name, entry.mimeType, entry.content, entry.content.length);
+        }
+        else if (entry.rendering != null)
+        {
+            ByteArrayOutputStream buffer = this.take(entry);
+            if (buffer == null)
+            {
+                return;
+            }
+            try
+            {
+                this.policy.writeEntry(this.zos, entry.name, entry.mimeType, buffer);
+            }
+            finally
+            {
+                this.renderer.release(buffer);
+            }
+        }
+        else if (entry.readAhead != null)
+        {
+            byte[] content = this.take(entry.readAhead, entry);
+            if (content != null)
+            {
+                this.policy.writeEntry(this.zos, entry.name, entry.mimeType, content, content.length);
+            }
+            else
+            {
+                this.copyBitstream(entry);
+            }
+        }
+        else
+        {
+            this.copyBitstream(entry);
+        }
+
+        if (entry.url != null)
+        {
+            DSpaceResourceDocument.addDigests(entry.url, entry.bitstream);
+        }
+    }
+
+    /**
+     * Wait for the assembler to be done with a file; should it have failed, the assembler fails
+     * the whole zip when writing it
+     */
+    private void await(Future<?> compressed)
+            throws IOException
+    {
+        try
+        {
+            compressed.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            log.debug("Not waiting for a file which could not be added: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * @return the content of a bitstream which has been read ahead, or null if it is to be read
+     * again in place
+     */
+    private byte[] take(Future<byte[]> read, Pending entry)
+            throws IOException
+    {
+        try
+        {
+            return read.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            log.warn("Unable to read " + entry.name + " ahead: " + e.getCause().getMessage());
+            return null;
+        }
+        finally
+        {
+            this.readAhead.release(entry.size);
+        }
+    }
+
+    private Future<?> assemble(final Pending entry)
+            throws IOException
+    {
+        if (entry.content != null)
+        {
+            return this.assembler.addEntry(entry.name, entry.mimeType, entry.size, (context, out) -> out.write(entry.content));
+        }
+        else if (entry.rendering != null)
+        {
+            return this.assembler.addEntry(entry.name, entry.mimeType, -1, (context, out) -> {
+                ByteArrayOutputStream buffer = entry.rendering.get();
+                try
+                {
+                    buffer.writeTo(out);
+                }
+                finally
+                {
+                    renderer.release(buffer);
+                }
+            });
+        }
+        else
+        {
+            return this.assembler.addEntry(entry.name, entry.mimeType, entry.size, (context, out) -> {
+                DigestCache.Digester digester = digester(entry);
+                InputStream is = Bitstream.find(context, entry.bitstreamID).retrieve();
+                try
+                {
+                    CopyBuffers.copy(digester == null ? is : digester.wrap(is), out);
+                }
+                finally
+                {
+                    is.close();
+                }
+                if (digester != null)
+                {
+                    digester.done();
+                }
+            });
+        }
+    }
+
+    private ByteArrayOutputStream take(Pending entry)
+            throws IOException
+    {
+        try
+        {
+            return entry.rendering.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            // a failing crosswalk only loses its own export, as when rendering in place
+            log.error("Unable to render " + entry.name + ": " + e.getCause().getMessage(), e.getCause());
+            return null;
+        }
+    }
+
+    private void copyBitstream(Pending entry)
+            throws IOException
+    {
+        try
+        {
+            DigestCache.Digester digester = digester(entry);
+            InputStream is = Bitstream.find(this.context, entry.bitstreamID).retrieve();
+            try
+            {
+                this.policy.putNextEntry(this.zos, entry.name, entry.mimeType, entry.size);
+                CopyBuffers.copy(digester == null ? is : digester.wrap(is), this.zos);
+                this.zos.closeEntry();
+            }
+            finally
+            {
+                is.close();
+            }
+            if (digester != null)
+            {
+                digester.done();
+            }
+        }
+        catch (SQLException e)
+        {
+            log.error(e.getMessage(), e);
+        }
+        catch (AuthorizeException e)
+        {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The content of the entry opened on the zip stream, kept in a temporary file until it is
+     * closed; it is then copied into the zip after the files added meanwhile
+     */
+    private class DeferredEntryStream extends FilterOutputStream
+    {
+        private String name;
+        private String mimeType;
+        private File file;
+        private boolean closed = false;
+
+        private DeferredEntryStream(String name, String mimeType, File file)
+                throws IOException
+        {
+            super(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            this.name = name;
+            this.mimeType = mimeType;
+            this.file = file;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            try
+            {
+                this.out.close();
+                flush();
+                InputStream in = new FileInputStream(this.file);
+                try
+                {
+                    policy.putNextEntry(zos, this.name, this.mimeType, this.file.length());
+                    CopyBuffers.copy(in, zos);
+                    zos.closeEntry();
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            finally
+            {
+                this.file.delete();
+            }
+        }
+    }
+
+    /**
+     * A manifest whose entries wait for the files added before them
+     */
+    private class Manifest extends StreamingResourceList
+    {
+        private Manifest(ResourceSyncDocument header, OutputStream out)
+                throws IOException
+        {
+            super(header, out);
+        }
+
+        @Override
+        public void addEntry(ResourceSyncEntry entry)
+        {
+            try
+            {
+                enqueue(new Pending(this, entry));
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            OrderedZipWriter.this.flush();
+            super.close();
+        }
+
+        private void write(ResourceSyncEntry entry)
+        {
+            super.addEntry(entry);
+        }
+    }
+
+    /**
+     * @return the computation of the digests of the bitstream, or null if they are not needed
+     */
+    private static DigestCache.Digester digester(Pending entry)
+    {
+        DigestCache digests = DigestCache.getInstance();
+        return digests == null ? null : digests.digester(entry.bitstreamID, entry.internalID);
+    }
+
+    private static class Pending
+    {
+        private String name;
+        private String mimeType;
+        private long size;
+        private byte[] content;
+        private Future<ByteArrayOutputStream> rendering;
+        private int bitstreamID;
+        private String internalID = null;
+        private Future<byte[]> readAhead = null;
+        private Future<?> compressed = null;
+        private PrefetchedBitstream bitstream = null;
+        private URL url = null;
+        private ResourceSyncDocument document = null;
+        private ResourceSyncEntry documentEntry = null;
+
+        private Pending(String name, String mimeType, long size, byte[] content,
+                        Future<ByteArrayOutputStream> rendering, int bitstreamID)
+        {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.content = content;
+            this.rendering = rendering;
+            this.bitstreamID = bitstreamID;
+        }
+
+        private Pending(ResourceSyncDocument document, ResourceSyncEntry documentEntry)
+        {
+            this(null, null, -1, null, null, -1);
+            this.document = document;
+            this.documentEntry = documentEntry;
+        }
+
+        private boolean isReady()
+        {
+            return (this.rendering == null || this.rendering.isDone()) &&
+                    (this.readAhead == null || this.readAhead.isDone()) &&
+                    (this.compressed == null || this.compressed.isDone());
+        }
+    }
+}
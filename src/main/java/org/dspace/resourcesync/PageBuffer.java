@@ -0,0 +1,218 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.openarchives.resourcesync.ResourceList;
+import org.openarchives.resourcesync.ResourceSyncEntry;
+import org.openarchives.resourcesync.URL;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * The output produced for a page of items by a worker of the {@link GenerationPipeline}: the
+ * document entries, the scopes each of them belongs to (for scoped resource lists) and, for dumps,
+ * the files to add to the zip.  Nothing is written out until the page is handed to the writer.
+ */
+public class PageBuffer extends ResourceList
+{
+    private List<ResourceSyncEntry> entries = new ArrayList<ResourceSyncEntry>();
+    private List<List<String>> entryScopes = new ArrayList<List<String>>();
+    private List<String> scopes = Collections.emptyList();
+    private List<DumpEntry> dumpEntries = new ArrayList<DumpEntry>();
+
+    public PageBuffer()
+    {
+        super(null, false);
+    }
+
+    @Override
+    public void addEntry(ResourceSyncEntry entry)
+    {
+        this.entries.add(entry);
+        this.entryScopes.add(this.scopes);
+    }
+
+    /**
+     * Set the scopes of the entries added from now on
+     */
+    public void setScopes(List<String> scopes)
+    {
+        this.scopes = scopes;
+    }
+
+    public List<ResourceSyncEntry> getBufferedEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return the scopes of the entry at the given position in {@link #getBufferedEntries()}
+     */
+    public List<String> getEntryScopes(int index)
+    {
+        return entryScopes.get(index);
+    }
+
+    /**
+     * Record a file of the dump whose content has already been produced
+     */
+    public void addDumpContent(String entryName, byte[] content, String mimeType)
+    {
+        this.dumpEntries.add(new DumpEntry(entryName, mimeType, content.length, content, null, -1));
+    }
+
+    /**
+     * Record a file of the dump whose content is being rendered by a {@link MetadataRenderer}
+     */
+    public void addDumpRendering(String entryName, Future<ByteArrayOutputStream> rendering, String mimeType)
+    {
+        this.dumpEntries.add(new DumpEntry(entryName, mimeType, -1, null, rendering, -1));
+    }
+
+    /**
+     * Record a file of the dump which is to be copied from the given bitstream when written
+     *
+     * @param path  the path of the file in the manifest
+     * @param url   the manifest entry of the bitstream, whose path may still change when written
+     * @param raw   the unchanged copy of the bitstream in the previous dump, or null
+     */
+    public void addDumpBitstream(String entryName, String path, PrefetchedBitstream bitstream, URL url,
+                                 PreviousDump.RawEntry raw)
+    {
+        DumpEntry entry = new DumpEntry(entryName, bitstream.getMIMEType(), bitstream.getSize(), null, null, bitstream.getID());
+        entry.internalID = bitstream.getInternalID();
+        entry.path = path;
+        entry.bitstream = bitstream;
+        entry.url = url;
+        entry.raw = raw;
+        this.dumpEntries.add(entry);
+    }
+
+    /**
+     * Record a file of the dump which is copied as it is from the previous dump
+     */
+    public void addDumpRaw(String entryName, PreviousDump.RawEntry raw)
+    {
+        DumpEntry entry = new DumpEntry(entryName, null, raw.getSize(), null, null, -1);
+        entry.raw = raw;
+        this.dumpEntries.add(entry);
+    }
+
+    public List<DumpEntry> getDumpEntries()
+    {
+        return dumpEntries;
+    }
+
+    public static class DumpEntry
+    {
+        private String name;
+        private String mimeType;
+        private long size;
+        private byte[] content;
+        private Future<ByteArrayOutputStream> rendering;
+        private int bitstreamID;
+        private String internalID = null;
+        private String path = null;
+        private PrefetchedBitstream bitstream = null;
+        private URL url = null;
+        private PreviousDump.RawEntry raw = null;
+
+        private DumpEntry(String name, String mimeType, long size, byte[] content,
+                          Future<ByteArrayOutputStream> rendering, int bitstreamID)
+        {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.content = content;
+            this.rendering = rendering;
+            this.bitstreamID = bitstreamID;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getMimeType()
+        {
+            return mimeType;
+        }
+
+        /**
+         * @return the size of the file, or -1 if it is not known yet
+         */
+        public long getSize()
+        {
+            return size;
+        }
+
+        /**
+         * @return the content of the file, or null if it is rendered or copied from a bitstream
+         */
+        public byte[] getContent()
+        {
+            return content;
+        }
+
+        /**
+         * @return the rendering of the file, or null if its content is known or copied from a
+         * bitstream
+         */
+        public Future<ByteArrayOutputStream> getRendering()
+        {
+            return rendering;
+        }
+
+        public int getBitstreamID()
+        {
+            return bitstreamID;
+        }
+
+        /**
+         * @return the id in the assetstore of the bitstream to copy
+         */
+        public String getInternalID()
+        {
+            return internalID;
+        }
+
+        /**
+         * @return the path of the bitstream to copy in the manifest, or null
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return the bitstream to copy, or null
+         */
+        public PrefetchedBitstream getBitstream()
+        {
+            return bitstream;
+        }
+
+        /**
+         * @return the manifest entry of the bitstream to copy, or null
+         */
+        public URL getUrl()
+        {
+            return url;
+        }
+
+        /**
+         * @return the file of the previous dump to copy, or null
+         */
+        public PreviousDump.RawEntry getRaw()
+        {
+            return raw;
+        }
+    }
+}
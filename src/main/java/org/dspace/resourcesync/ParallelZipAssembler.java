@@ -0,0 +1,719 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Builds a zip with its entries compressed concurrently.
+ *
+ * Every worker thread compresses the entries it is given into a scatter file of its own, keeping
+ * track of where each of them lands.  Once all the entries are done, {@link #writeTo(OutputStream)}
+ * stitches the archive together: for every entry, in the order the entries were added, it writes
+ * the local header and copies the already compressed data across, then writes the central
+ * directory.  Nothing is compressed twice, and the archive is the same whatever the number of
+ * threads: all the entries carry the time the assembler was created.  The scatter files are kept
+ * in a private work directory (zip.work-dir, java.io.tmpdir by default), never next to the dumps
+ * which are served.  Zip64 records are used where sizes, offsets or the number of entries require them.
+ *
+ * An entry can also be written by the calling thread itself, through {@link #openEntry(String, String)},
+ * while the others are compressed; it then goes to a scatter file of the calling thread, and comes
+ * after the entries added before it is closed.
+ *
+ * An entry can also be copied, still compressed, from another zip (see {@link PreviousDump}).
+ *
+ * An entry whose content fails to be produced fails the whole archive, as the manifest written
+ * along with it already lists the entry.
+ */
+public class ParallelZipAssembler implements Closeable
+{
+    private static Logger log = Logger.getLogger(ParallelZipAssembler.class);
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRIES = 0xFFFF;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * Produces the content of an entry, in a worker thread
+     */
+    public interface EntryContent
+    {
+        void writeTo(Context context, OutputStream out)
+                throws Exception;
+    }
+
+    private File workDir;
+    private long time = System.currentTimeMillis();
+    private ZipCompressionPolicy policy;
+    private ExecutorService executor;
+    private Semaphore inFlight;
+    private List<Future<ScatteredEntry>> entries = new ArrayList<Future<ScatteredEntry>>();
+
+    private ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+    private List<Worker> allWorkers = Collections.synchronizedList(new ArrayList<Worker>());
+
+    /**
+     * Keep the scatter files in the configured work directory
+     *
+     * @param threads       the number of threads compressing the entries
+     * @param policy        how to compress the entries
+     * @param maxInFlight   the number of entries which may be waiting to be compressed
+     */
+    public ParallelZipAssembler(int threads, ZipCompressionPolicy policy, int maxInFlight)
+    {
+        this(getConfiguredWorkDir(), threads, policy, maxInFlight);
+    }
+
+    /**
+     * @param workDir       the directory to keep the scatter files in until the archive is written
+     * @param threads       the number of threads compressing the entries
+     * @param policy        how to compress the entries
+     * @param maxInFlight   the number of entries which may be waiting to be compressed
+     */
+    public ParallelZipAssembler(File workDir, int threads, ZipCompressionPolicy policy, int maxInFlight)
+    {
+        this.workDir = workDir;
+        this.policy = policy;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    /**
+     * @return the configured number of compressing threads; 0 means the zips are written by a
+     * single ZipOutputStream
+     */
+    public static int getConfiguredThreads()
+    {
+        return ConfigurationManager.getIntProperty("resourcesync", "zip.assembly-threads", 0);
+    }
+
+    /**
+     * @return the directory to keep temporary files in while a zip is assembled, which must not
+     * be one served to clients
+     */
+    public static File getConfiguredWorkDir()
+    {
+        String dir = ConfigurationManager.getProperty("resourcesync", "zip.work-dir");
+        if (dir == null || "".equals(dir.trim()))
+        {
+            dir = System.getProperty("java.io.tmpdir");
+        }
+        File workDir = new File(dir.trim());
+        workDir.mkdirs();
+        return workDir;
+    }
+
+    /**
+     * Add an entry; its content is produced and compressed by one of the workers
+     *
+     * @param size  the size of the content, or -1 if it is not known
+     * @return the compression of the entry, done once the entry has been compressed
+     */
+    public Future<?> addEntry(final String entryName, final String mimeType, final long size, final EntryContent content)
+            throws IOException
+    {
+        try
+        {
+            this.inFlight.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        Future<ScatteredEntry> entry = this.executor.submit(() -> {
+            try
+            {
+                return getWorker().compress(entryName, mimeType, size, time, content);
+            }
+            finally
+            {
+                inFlight.release();
+            }
+        });
+        this.entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Add an entry whose content is written by the calling thread through the returned stream,
+     * while further entries are added; the entry takes its place in the archive when the stream is
+     * closed, after the entries added until then, which must happen before {@link #writeTo(OutputStream)}.
+     * Only one entry may be open at a time.
+     */
+    public OutputStream openEntry(String entryName, String mimeType)
+            throws IOException
+    {
+        final CompletableFuture<ScatteredEntry> done = new CompletableFuture<ScatteredEntry>();
+        EntryStream stream = getWorker().open(entryName, mimeType, -1, this.time, done);
+        return new FilterOutputStream(stream)
+        {
+            @Override
+            public void write(byte[] b, int off, int len)
+                    throws IOException
+            {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                if (!done.isDone())
+                {
+                    this.out.close();
+                    entries.add(done);
+                }
+            }
+        };
+    }
+
+    /**
+     * Add an entry whose compressed data is copied as it is from another zip, which must not change
+     * until the archive has been written
+     */
+    public void addRawEntry(String entryName, PreviousDump.RawEntry raw)
+    {
+        ScatteredEntry entry = new ScatteredEntry();
+        entry.name = entryName;
+        entry.time = this.time;
+        entry.method = raw.getMethod();
+        entry.crc = raw.getCrc();
+        entry.size = raw.getSize();
+        entry.compressedSize = raw.getCompressedSize();
+        entry.scatterFile = raw.getZip();
+        entry.scatterOffset = raw.getDataOffset();
+        this.entries.add(CompletableFuture.completedFuture(entry));
+    }
+
+    /**
+     * Wait for all the entries to be compressed and write the archive
+     */
+    public void writeTo(OutputStream os)
+            throws IOException
+    {
+        List<ScatteredEntry> written = new ArrayList<ScatteredEntry>();
+        for (Future<ScatteredEntry> future : this.entries)
+        {
+            ScatteredEntry entry = this.take(future);
+            if (entry != null)
+            {
+                written.add(entry);
+            }
+        }
+
+        // everything has been compressed, so the scatter files can be completed and read back
+        for (Worker worker : this.allWorkers)
+        {
+            worker.flush();
+        }
+
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new NonClosingOutputStream(os), 65536));
+        WritableByteChannel target = Channels.newChannel(out);
+        Map<File, FileChannel> scatter = new HashMap<File, FileChannel>();
+        try
+        {
+            for (ScatteredEntry entry : written)
+            {
+                FileChannel channel = scatter.get(entry.scatterFile);
+                if (channel == null)
+                {
+                    channel = new RandomAccessFile(entry.scatterFile, "r").getChannel();
+                    scatter.put(entry.scatterFile, channel);
+                }
+
+                entry.headerOffset = out.getByteCount();
+                writeLocalHeader(out, entry);
+                long position = entry.scatterOffset;
+                long remaining = entry.compressedSize;
+                while (remaining > 0)
+                {
+                    long n = channel.transferTo(position, remaining, target);
+                    if (n <= 0)
+                    {
+                        throw new IOException("The scatter file " + entry.scatterFile + " is shorter than expected");
+                    }
+                    position += n;
+                    remaining -= n;
+                }
+            }
+
+            long cdOffset = out.getByteCount();
+            for (ScatteredEntry entry : written)
+            {
+                writeCentralHeader(out, entry);
+            }
+            long cdSize = out.getByteCount() - cdOffset;
+            writeEnd(out, written.size(), cdOffset, cdSize);
+            out.flush();
+        }
+        finally
+        {
+            for (FileChannel channel : scatter.values())
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Stop the workers and delete the scatter files
+     */
+    public void close()
+            throws IOException
+    {
+        this.executor.shutdownNow();
+        try
+        {
+            this.executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        for (Worker worker : this.allWorkers)
+        {
+            worker.close();
+        }
+    }
+
+    /**
+     * @return the context a worker produces the content of its entries with
+     */
+    protected Context createContext()
+            throws SQLException
+    {
+        return new Context();
+    }
+
+    private Worker getWorker()
+            throws IOException
+    {
+        Worker worker = this.workers.get();
+        if (worker == null)
+        {
+            worker = new Worker(File.createTempFile("resourcesync-", ".scatter", this.workDir));
+            this.workers.set(worker);
+            this.allWorkers.add(worker);
+        }
+        return worker;
+    }
+
+    private ScatteredEntry take(Future<ScatteredEntry> future)
+            throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * A compressing thread, with its scatter file, its context and its deflater
+     */
+    private class Worker
+    {
+        private File file;
+        private CountingOutputStream out;
+        private Context context = null;
+        private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        private Worker(File file)
+                throws IOException
+        {
+            this.file = file;
+            this.out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        }
+
+        /**
+         * @return where the entry was written to
+         */
+        private ScatteredEntry compress(String entryName, String mimeType, long size, long time, EntryContent content)
+                throws IOException
+        {
+            EntryStream stream = this.open(entryName, mimeType, size, time, null);
+            try
+            {
+                if (this.context == null)
+                {
+                    this.context = createContext();
+                }
+                content.writeTo(this.context, stream);
+                stream.close();
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Unable to add " + entryName + " to the zip: " + e.getMessage(), e);
+            }
+            return stream.entry;
+        }
+
+        /**
+         * Start an entry at the end of the scatter file; nothing else may be written to the file
+         * until the returned stream is closed
+         */
+        private EntryStream open(String entryName, String mimeType, long size, long time,
+                                 CompletableFuture<ScatteredEntry> done)
+        {
+            int level = policy.getLevel(mimeType, size);
+            ScatteredEntry entry = new ScatteredEntry();
+            entry.name = entryName;
+            entry.time = time;
+            entry.scatterFile = this.file;
+            entry.scatterOffset = this.out.getByteCount();
+            entry.method = level == ZipCompressionPolicy.STORE ? METHOD_STORED : METHOD_DEFLATED;
+
+            CountingOutputStream raw = new CountingOutputStream(new NonClosingOutputStream(this.out));
+            DeflaterOutputStream dos = null;
+            if (entry.method == METHOD_DEFLATED)
+            {
+                this.deflater.reset();
+                this.deflater.setLevel(level);
+                dos = new DeflaterOutputStream(raw, this.deflater, 65536);
+            }
+            return new EntryStream(entry, raw, dos, done);
+        }
+
+        private void flush()
+                throws IOException
+        {
+            this.out.flush();
+        }
+
+        private void close()
+        {
+            try
+            {
+                this.out.close();
+            }
+            catch (IOException e)
+            {
+                log.warn(e.getMessage());
+            }
+            this.deflater.end();
+            if (this.context != null)
+            {
+                this.context.abort();
+            }
+            this.file.delete();
+        }
+    }
+
+    /**
+     * The content of an entry on its way to a scatter file; closing it completes the entry
+     */
+    private static class EntryStream extends FilterOutputStream
+    {
+        private ScatteredEntry entry;
+        private CRC32 crc = new CRC32();
+        private CountingOutputStream raw;
+        private DeflaterOutputStream dos;
+        private CountingOutputStream plain;
+        private CompletableFuture<ScatteredEntry> done;
+        private boolean closed = false;
+
+        private EntryStream(ScatteredEntry entry, CountingOutputStream raw, DeflaterOutputStream dos,
+                            CompletableFuture<ScatteredEntry> done)
+        {
+            super(null);
+            this.entry = entry;
+            this.raw = raw;
+            this.dos = dos;
+            this.plain = new CountingOutputStream(new CheckingOutputStream(dos != null ? dos : raw, this.crc));
+            this.out = this.plain;
+            this.done = done;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            if (this.dos != null)
+            {
+                this.dos.finish();
+            }
+            this.raw.flush();
+
+            this.entry.size = this.plain.getByteCount();
+            this.entry.compressedSize = this.raw.getByteCount();
+            this.entry.crc = this.crc.getValue();
+            if (this.done != null)
+            {
+                this.done.complete(this.entry);
+            }
+        }
+    }
+
+    private static class ScatteredEntry
+    {
+        private String name;
+        private long time;
+        private int method;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private File scatterFile;
+        private long scatterOffset;
+        private long headerOffset;
+    }
+
+    private static void writeLocalHeader(OutputStream out, ScatteredEntry entry)
+            throws IOException
+    {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+
+        writeInt(out, 0x04034b50L);
+        writeShort(out, zip64 ? 45 : 20);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, entry.method);
+        writeInt(out, dosTime(entry.time));
+        writeInt(out, entry.crc);
+        writeInt(out, zip64 ? ZIP64_LIMIT : entry.compressedSize);
+        writeInt(out, zip64 ? ZIP64_LIMIT : entry.size);
+        writeShort(out, name.length);
+        writeShort(out, zip64 ? 20 : 0);
+        out.write(name);
+        if (zip64)
+        {
+            writeShort(out, 0x0001);
+            writeShort(out, 16);
+            writeLong(out, entry.size);
+            writeLong(out, entry.compressedSize);
+        }
+    }
+
+    private static void writeCentralHeader(OutputStream out, ScatteredEntry entry)
+            throws IOException
+    {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        boolean bigSize = entry.size >= ZIP64_LIMIT;
+        boolean bigCompressed = entry.compressedSize >= ZIP64_LIMIT;
+        boolean bigOffset = entry.headerOffset >= ZIP64_LIMIT;
+        int extra = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+        boolean zip64 = extra > 0;
+
+        writeInt(out, 0x02014b50L);
+        writeShort(out, 45);
+        writeShort(out, zip64 ? 45 : 20);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, entry.method);
+        writeInt(out, dosTime(entry.time));
+        writeInt(out, entry.crc);
+        writeInt(out, bigCompressed ? ZIP64_LIMIT : entry.compressedSize);
+        writeInt(out, bigSize ? ZIP64_LIMIT : entry.size);
+        writeShort(out, name.length);
+        writeShort(out, zip64 ? extra + 4 : 0);
+        writeShort(out, 0);     // comment
+        writeShort(out, 0);     // disk
+        writeShort(out, 0);     // internal attributes
+        writeInt(out, 0);       // external attributes
+        writeInt(out, bigOffset ? ZIP64_LIMIT : entry.headerOffset);
+        out.write(name);
+        if (zip64)
+        {
+            writeShort(out, 0x0001);
+            writeShort(out, extra);
+            if (bigSize)
+            {
+                writeLong(out, entry.size);
+            }
+            if (bigCompressed)
+            {
+                writeLong(out, entry.compressedSize);
+            }
+            if (bigOffset)
+            {
+                writeLong(out, entry.headerOffset);
+            }
+        }
+    }
+
+    private static void writeEnd(CountingOutputStream out, int count, long cdOffset, long cdSize)
+            throws IOException
+    {
+        if (count >= ZIP64_ENTRIES || cdOffset >= ZIP64_LIMIT || cdSize >= ZIP64_LIMIT)
+        {
+            long zip64End = out.getByteCount();
+            writeInt(out, 0x06064b50L);
+            writeLong(out, 44);
+            writeShort(out, 45);
+            writeShort(out, 45);
+            writeInt(out, 0);
+            writeInt(out, 0);
+            writeLong(out, count);
+            writeLong(out, count);
+            writeLong(out, cdSize);
+            writeLong(out, cdOffset);
+
+            writeInt(out, 0x07064b50L);
+            writeInt(out, 0);
+            writeLong(out, zip64End);
+            writeInt(out, 1);
+        }
+
+        writeInt(out, 0x06054b50L);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, Math.min(count, ZIP64_ENTRIES));
+        writeShort(out, Math.min(count, ZIP64_ENTRIES));
+        writeInt(out, Math.min(cdSize, ZIP64_LIMIT));
+        writeInt(out, Math.min(cdOffset, ZIP64_LIMIT));
+        writeShort(out, 0);
+    }
+
+    private static long dosTime(long time)
+    {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+        {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25) | ((long) (c.get(Calendar.MONTH) + 1) << 21) |
+                ((long) c.get(Calendar.DAY_OF_MONTH) << 16) | ((long) c.get(Calendar.HOUR_OF_DAY) << 11) |
+                ((long) c.get(Calendar.MINUTE) << 5) | ((long) c.get(Calendar.SECOND) >> 1);
+    }
+
+    private static void writeShort(OutputStream out, int v)
+            throws IOException
+    {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, long v)
+            throws IOException
+    {
+        writeShort(out, (int) (v & 0xffff));
+        writeShort(out, (int) ((v >>> 16) & 0xffff));
+    }
+
+    private static void writeLong(OutputStream out, long v)
+            throws IOException
+    {
+        writeInt(out, v & 0xffffffffL);
+        writeInt(out, v >>> 32);
+    }
+
+    /**
+     * Updates the checksum with everything written through it
+     */
+    private static class CheckingOutputStream extends FilterOutputStream
+    {
+        private CRC32 crc;
+
+        private CheckingOutputStream(OutputStream out, CRC32 crc)
+        {
+            super(out);
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            this.out.write(b);
+            this.crc.update(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            this.out.write(b, off, len);
+            this.crc.update(b, off, len);
+        }
+    }
+
+    /**
+     * Keeps the underlying stream open, so that content producers closing what they are given
+     * do not close the scatter file or the archive
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream
+    {
+        private NonClosingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            this.flush();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+/**
+ * The details of a bitstream which are needed to describe it in a ResourceSync document, as
+ * loaded by {@link ItemPrefetch}.  The bitstream itself can be looked up by id when its content is
+ * needed.
+ */
+public class PrefetchedBitstream
+{
+    private int id;
+    private int sequenceID;
+    private String name;
+    private long size;
+    private String checksum;
+    private String checksumAlgorithm;
+    private String internalID;
+    private String mimeType;
+    private String bundleName;
+
+    public PrefetchedBitstream(int id, int sequenceID, String name, long size, String checksum,
+            String checksumAlgorithm, String internalID, String mimeType, String bundleName)
+    {
+        this.id = id;
+        this.sequenceID = sequenceID;
+        this.name = name;
+        this.size = size;
+        this.checksum = checksum;
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.internalID = internalID;
+        this.mimeType = mimeType;
+        this.bundleName = bundleName;
+    }
+
+    public int getID()
+    {
+        return id;
+    }
+
+    public int getSequenceID()
+    {
+        return sequenceID;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public String getChecksum()
+    {
+        return checksum;
+    }
+
+    public String getChecksumAlgorithm()
+    {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * @return the id of the file in the assetstore, which changes with the content
+     */
+    public String getInternalID()
+    {
+        return internalID;
+    }
+
+    public String getMIMEType()
+    {
+        return mimeType;
+    }
+
+    public String getBundleName()
+    {
+        return bundleName;
+    }
+}
@@ -0,0 +1,617 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.log4j.Logger;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The zips of a resource dump as it was before a rebase, so that the files of the resources which
+ * have not changed since can be copied into the new dump as they are, still compressed.
+ *
+ * The manifests of the zips tell, for every resource, when it was last modified, its hash and where
+ * it is in the zip; the central directories of the zips tell where the compressed data of every
+ * file is.  A resource is unchanged if its last modified date (to the second) and, for bitstreams,
+ * its DSpace checksum are the same as in the manifest.
+ *
+ * As a dump may list millions of resources, they are kept in a compact index rather than as
+ * objects: the resources are found by a 64 bit hash of their URL, and their dates, the hashes of
+ * their checksums and the location of their files are held in arrays of primitives.  A hash
+ * collision would at worst have a resource looked up under the URL of another, which still needs
+ * the same date and checksum to be reused.  The central directory of a zip is only held while its
+ * manifest is read.
+ *
+ * Once opened, a previous dump may be used by several threads at once.
+ */
+public class PreviousDump implements Closeable
+{
+    private static Logger log = Logger.getLogger(PreviousDump.class);
+
+    private static XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    private static final long UNKNOWN_DATE = Long.MIN_VALUE;
+
+    // the resources listed in the manifests, by the hash of their URL
+    private HashIndex index = new HashIndex();
+    private int count = 0;
+    private long[] lastModified = new long[1024];
+    private int[] firstChecksum = new int[1024];
+    private int[] zipOf = new int[1024];
+    private int[] method = new int[1024];
+    private long[] crc = new long[1024];
+    private long[] size = new long[1024];
+    private long[] compressedSize = new long[1024];
+    private long[] headerOffset = new long[1024];
+
+    // the hashes of the values of the hash attributes, those of a resource following each other
+    private long[] checksums = new long[1024];
+    private int checksumCount = 0;
+
+    private List<File> zips = new ArrayList<File>();
+    private List<FileChannel> channels = new ArrayList<FileChannel>();
+
+    /**
+     * @param zips  the zips of the previous dump, with a manifest each
+     * @return the previous dump, or null if none of the zips can be read
+     */
+    public static PreviousDump open(List<File> zips)
+    {
+        PreviousDump previous = new PreviousDump();
+        boolean any = false;
+        for (File zip : zips)
+        {
+            try
+            {
+                previous.load(zip);
+                any = true;
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to reuse " + zip + ": " + e.getMessage());
+            }
+            catch (XMLStreamException e)
+            {
+                log.warn("Unable to read the manifest of " + zip + ": " + e.getMessage());
+            }
+        }
+        if (!any)
+        {
+            previous.close();
+            return null;
+        }
+        return previous;
+    }
+
+    /**
+     * @param loc               the URL of the resource
+     * @param lastModified      the last modified date of the resource now
+     * @param checksumAlgorithm the algorithm of its DSpace checksum, or null for metadata
+     * @param checksum          its DSpace checksum, or null for metadata
+     * @return the file of the previous dump holding the resource, if it has not changed since
+     */
+    public RawEntry getUnchanged(String loc, Date lastModified, String checksumAlgorithm, String checksum)
+    {
+        int i = this.index.get(hash(loc));
+        if (i < 0 || this.lastModified[i] == UNKNOWN_DATE || lastModified == null ||
+                this.lastModified[i] != lastModified.getTime() / 1000)
+        {
+            return null;
+        }
+        if (checksum != null)
+        {
+            String expected = checksumAlgorithm == null ? checksum : checksumAlgorithm.toLowerCase() + ":" + checksum;
+            if (!this.hasChecksum(i, hash(expected)))
+            {
+                return null;
+            }
+        }
+
+        RawEntry entry = new RawEntry();
+        entry.zip = this.zips.get(this.zipOf[i]);
+        entry.method = this.method[i];
+        entry.crc = this.crc[i];
+        entry.size = this.size[i];
+        entry.compressedSize = this.compressedSize[i];
+        try
+        {
+            entry.dataOffset = dataOffset(this.channels.get(this.zipOf[i]), this.headerOffset[i]);
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to locate " + loc + " in " + entry.zip + ": " + e.getMessage());
+            return null;
+        }
+        return entry;
+    }
+
+    public void close()
+    {
+        for (FileChannel channel : this.channels)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.warn(e.getMessage());
+            }
+        }
+    }
+
+    private boolean hasChecksum(int i, long expected)
+    {
+        int end = i + 1 < this.count ? this.firstChecksum[i + 1] : this.checksumCount;
+        for (int c = this.firstChecksum[i]; c < end; c++)
+        {
+            if (this.checksums[c] == expected)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void load(File zip)
+            throws IOException, XMLStreamException
+    {
+        FileChannel channel = new RandomAccessFile(zip, "r").getChannel();
+        this.channels.add(channel);
+        this.zips.add(zip);
+        CentralDirectory files = readCentralDirectory(channel);
+
+        ZipFile zf = new ZipFile(zip);
+        try
+        {
+            ZipEntry manifest = zf.getEntry(FileNames.resourceDumpManifest);
+            if (manifest == null)
+            {
+                throw new IOException("no manifest");
+            }
+            InputStream in = zf.getInputStream(manifest);
+            try
+            {
+                this.readManifest(in, this.zips.size() - 1, files);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        finally
+        {
+            zf.close();
+        }
+    }
+
+    private void readManifest(InputStream in, int zip, CentralDirectory files)
+            throws XMLStreamException
+    {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(in, "UTF-8");
+        try
+        {
+            boolean inUrl = false;
+            String loc = null;
+            Date modified = null;
+            String hashes = null;
+            String path = null;
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String name = reader.getLocalName();
+                    if ("url".equals(name))
+                    {
+                        inUrl = true;
+                        loc = null;
+                        modified = null;
+                        hashes = null;
+                        path = null;
+                    }
+                    else if (inUrl && "loc".equals(name))
+                    {
+                        loc = reader.getElementText().trim();
+                    }
+                    else if (inUrl && "lastmod".equals(name))
+                    {
+                        modified = parseDate(reader.getElementText());
+                    }
+                    else if (inUrl && "md".equals(name))
+                    {
+                        hashes = reader.getAttributeValue(null, "hash");
+                        path = reader.getAttributeValue(null, "path");
+                        if (modified == null)
+                        {
+                            modified = parseDate(reader.getAttributeValue(null, "at"));
+                        }
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT && "url".equals(reader.getLocalName()))
+                {
+                    if (loc != null && path != null)
+                    {
+                        int file = files.index.get(hash(path.replace("/", File.separator)));
+                        if (file >= 0)
+                        {
+                            this.add(loc, modified, hashes, zip, files, file);
+                        }
+                    }
+                    inUrl = false;
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private void add(String loc, Date modified, String hashes, int zip, CentralDirectory files, int file)
+    {
+        int i = this.count++;
+        if (i == this.lastModified.length)
+        {
+            int capacity = i * 2;
+            this.lastModified = Arrays.copyOf(this.lastModified, capacity);
+            this.firstChecksum = Arrays.copyOf(this.firstChecksum, capacity);
+            this.zipOf = Arrays.copyOf(this.zipOf, capacity);
+            this.method = Arrays.copyOf(this.method, capacity);
+            this.crc = Arrays.copyOf(this.crc, capacity);
+            this.size = Arrays.copyOf(this.size, capacity);
+            this.compressedSize = Arrays.copyOf(this.compressedSize, capacity);
+            this.headerOffset = Arrays.copyOf(this.headerOffset, capacity);
+        }
+
+        this.lastModified[i] = modified == null ? UNKNOWN_DATE : modified.getTime() / 1000;
+        this.zipOf[i] = zip;
+        this.method[i] = files.method[file];
+        this.crc[i] = files.crc[file];
+        this.size[i] = files.size[file];
+        this.compressedSize[i] = files.compressedSize[file];
+        this.headerOffset[i] = files.headerOffset[file];
+
+        this.firstChecksum[i] = this.checksumCount;
+        if (hashes != null)
+        {
+            for (String value : hashes.split(" "))
+            {
+                if (this.checksumCount == this.checksums.length)
+                {
+                    this.checksums = Arrays.copyOf(this.checksums, this.checksumCount * 2);
+                }
+                this.checksums[this.checksumCount++] = hash(value);
+            }
+        }
+
+        // a resource listed again, by a later part, replaces the earlier one
+        this.index.put(hash(loc), i);
+    }
+
+    private static Date parseDate(String value)
+    {
+        if (value == null || "".equals(value.trim()))
+        {
+            return null;
+        }
+        try
+        {
+            return DatatypeConverter.parseDateTime(value.trim()).getTime();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * FNV-1a, on 64 bits
+     */
+    private static long hash(String value)
+    {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++)
+        {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Read the central directory of the zip, including its Zip64 records
+     */
+    private static CentralDirectory readCentralDirectory(FileChannel channel)
+            throws IOException
+    {
+        // the end of central directory record is within the last 64k + 22 bytes
+        long size = channel.size();
+        int tail = (int) Math.min(size, 65557);
+        ByteBuffer end = read(channel, size - tail, tail);
+        int eocd = -1;
+        for (int i = tail - 22; i >= 0; i--)
+        {
+            if (end.getInt(i) == 0x06054b50)
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+        {
+            throw new IOException("not a zip");
+        }
+
+        long count = end.getShort(eocd + 10) & 0xffff;
+        long cdOffset = end.getInt(eocd + 16) & 0xffffffffL;
+        if ((count == 0xffff || cdOffset == 0xffffffffL) && eocd >= 20 && end.getInt(eocd - 20) == 0x07064b50)
+        {
+            long zip64End = end.getLong(eocd - 20 + 8);
+            ByteBuffer zip64 = read(channel, zip64End, 56);
+            if (zip64.getInt(0) != 0x06064b50)
+            {
+                throw new IOException("broken Zip64 end of central directory");
+            }
+            count = zip64.getLong(32);
+            cdOffset = zip64.getLong(48);
+        }
+
+        if (count > Integer.MAX_VALUE / 2)
+        {
+            throw new IOException("too many entries");
+        }
+        CentralDirectory files = new CentralDirectory((int) count);
+        channel.position(cdOffset);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536));
+        byte[] fixed = new byte[46];
+        ByteBuffer header = ByteBuffer.wrap(fixed).order(ByteOrder.LITTLE_ENDIAN);
+        for (long n = 0; n < count; n++)
+        {
+            in.readFully(fixed);
+            if (header.getInt(0) != 0x02014b50)
+            {
+                throw new IOException("broken central directory");
+            }
+            int i = (int) n;
+            files.method[i] = header.getShort(10) & 0xffff;
+            files.crc[i] = header.getInt(16) & 0xffffffffL;
+            files.compressedSize[i] = header.getInt(20) & 0xffffffffL;
+            files.size[i] = header.getInt(24) & 0xffffffffL;
+            int nameLength = header.getShort(28) & 0xffff;
+            int extraLength = header.getShort(30) & 0xffff;
+            int commentLength = header.getShort(32) & 0xffff;
+            files.headerOffset[i] = header.getInt(42) & 0xffffffffL;
+
+            byte[] name = new byte[nameLength];
+            in.readFully(name);
+            byte[] extra = new byte[extraLength];
+            in.readFully(extra);
+            in.skipBytes(commentLength);
+
+            readZip64Extra(files, i, extra);
+            files.index.put(hash(new String(name, StandardCharsets.UTF_8)), i);
+        }
+        return files;
+    }
+
+    private static void readZip64Extra(CentralDirectory files, int i, byte[] extra)
+    {
+        ByteBuffer fields = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        while (fields.remaining() >= 4)
+        {
+            int id = fields.getShort() & 0xffff;
+            int length = fields.getShort() & 0xffff;
+            if (length > fields.remaining())
+            {
+                return;
+            }
+            if (id != 0x0001)
+            {
+                fields.position(fields.position() + length);
+                continue;
+            }
+            // only the values which did not fit in the header are there, in this order
+            if (files.size[i] == 0xffffffffL && fields.remaining() >= 8)
+            {
+                files.size[i] = fields.getLong();
+            }
+            if (files.compressedSize[i] == 0xffffffffL && fields.remaining() >= 8)
+            {
+                files.compressedSize[i] = fields.getLong();
+            }
+            if (files.headerOffset[i] == 0xffffffffL && fields.remaining() >= 8)
+            {
+                files.headerOffset[i] = fields.getLong();
+            }
+            return;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("unexpected end of zip");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Where the data starts, past the local header of the file
+     */
+    private static long dataOffset(FileChannel channel, long headerOffset)
+            throws IOException
+    {
+        ByteBuffer local = read(channel, headerOffset, 30);
+        if (local.getInt(0) != 0x04034b50)
+        {
+            throw new IOException("broken local header");
+        }
+        return headerOffset + 30 + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+    }
+
+    /**
+     * The files of a zip, by the hash of their name
+     */
+    private static class CentralDirectory
+    {
+        private HashIndex index = new HashIndex();
+        private int[] method;
+        private long[] crc;
+        private long[] size;
+        private long[] compressedSize;
+        private long[] headerOffset;
+
+        private CentralDirectory(int count)
+        {
+            this.method = new int[count];
+            this.crc = new long[count];
+            this.size = new long[count];
+            this.compressedSize = new long[count];
+            this.headerOffset = new long[count];
+        }
+    }
+
+    /**
+     * Positions in arrays by 64 bit hashes, with open addressing
+     */
+    private static class HashIndex
+    {
+        private long[] keys = new long[1024];
+        // the position plus one, 0 for a free slot
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        private void put(long key, int position)
+        {
+            if ((this.size + 1) * 2 > this.keys.length)
+            {
+                this.grow();
+            }
+            int slot = this.find(key);
+            if (this.values[slot] == 0)
+            {
+                this.size++;
+            }
+            this.keys[slot] = key;
+            this.values[slot] = position + 1;
+        }
+
+        /**
+         * @return the position, or -1 if there is none for the key
+         */
+        private int get(long key)
+        {
+            return this.values[this.find(key)] - 1;
+        }
+
+        private int find(long key)
+        {
+            int mask = this.keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (this.values[slot] != 0 && this.keys[slot] != key)
+            {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = this.keys;
+            int[] oldValues = this.values;
+            this.keys = new long[oldKeys.length * 2];
+            this.values = new int[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldValues[i] != 0)
+                {
+                    int slot = this.find(oldKeys[i]);
+                    this.keys[slot] = oldKeys[i];
+                    this.values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * A file of a previous zip, whose compressed data can be copied as it is
+     */
+    public static class RawEntry
+    {
+        private File zip;
+        private int method;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long dataOffset;
+
+        public File getZip()
+        {
+            return zip;
+        }
+
+        /**
+         * @return the compression method, as in the zip format (0 stored, 8 deflated)
+         */
+        public int getMethod()
+        {
+            return method;
+        }
+
+        public long getCrc()
+        {
+            return crc;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getCompressedSize()
+        {
+            return compressedSize;
+        }
+
+        /**
+         * @return where the compressed data starts in the zip
+         */
+        public long getDataOffset()
+        {
+            return dataOffset;
+        }
+    }
+}
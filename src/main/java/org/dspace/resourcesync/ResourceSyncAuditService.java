@@ -10,6 +10,7 @@ package org.dspace.resourcesync;
  */
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -21,10 +22,10 @@ import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrQuery.SortClause;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
-import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.util.DateUtil;
+import org.dspace.core.ConfigurationManager;
 import org.dspace.utils.DSpace;
 
 /**
@@ -46,6 +47,13 @@ public class ResourceSyncAuditService {
 	
 	private static final String EXTRA_FIELD = "extra";
 
+	private static final String[] ALL_FIELDS = { RESOURCE_ID_FIELD, RESOURCE_TYPE_FIELD, CHANGETYPE_FIELD,
+			DATETIME_FIELD, SCOPES_FIELD, HANDLE_FIELD, EXTRA_FIELD };
+
+	// what the change lists and change dumps use of an event
+	private static final String[] CHANGE_FIELDS = { RESOURCE_ID_FIELD, RESOURCE_TYPE_FIELD, CHANGETYPE_FIELD,
+			DATETIME_FIELD, HANDLE_FIELD };
+
 	// ENUM con i valori di type
 	// Install|Modify_Metadata|Delete|Add|Remove
 	public static enum ChangeType {
@@ -68,6 +76,12 @@ public class ResourceSyncAuditService {
 	 */
 	private HttpSolrServer solr = null;
 
+	/**
+	 * The audit documents waiting to be sent in batches, or null if they are sent one at a time
+	 */
+	private AuditEventQueue queue = null;
+	private boolean queueInitialised = false;
+
 	protected HttpSolrServer getSolr() {
 		if (solr == null) {
 			String solrService = new DSpace().getConfigurationService().getProperty("resourcesync.solr.server");
@@ -90,6 +104,26 @@ public class ResourceSyncAuditService {
 		return solr;
 	}
 
+	protected synchronized AuditEventQueue getQueue() {
+		if (!queueInitialised) {
+			queueInitialised = true;
+			HttpSolrServer server = getSolr();
+			if (server != null) {
+				queue = AuditEventQueue.getConfigured(server);
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Send the audit events still waiting to Solr; called when the DSpace services are shut down
+	 */
+	public synchronized void shutdown() {
+		if (queue != null) {
+			queue.close();
+		}
+	}
+
 	public void addEvent(int resourceID, int resourcetype, ChangeType eventtype, Date date, List<String> scopes,String handle,String[] identifiers) {
 		SolrInputDocument solrInDoc = new SolrInputDocument();
 		solrInDoc.addField(RESOURCE_ID_FIELD, resourceID);
@@ -99,6 +133,10 @@ public class ResourceSyncAuditService {
 		solrInDoc.addField(SCOPES_FIELD, scopes);
 		solrInDoc.addField(HANDLE_FIELD, handle);
 		solrInDoc.addField(EXTRA_FIELD, identifiers);
+		AuditEventQueue queue = getQueue();
+		if (queue != null && queue.add(solrInDoc)) {
+			return;
+		}
 		try {
 			getSolr().add(solrInDoc);
 		} catch (SolrServerException | IOException e) {
@@ -106,39 +144,68 @@ public class ResourceSyncAuditService {
 		}
 	}
 
+	/**
+	 * @deprecated every event is held in memory, use {@link #streamEvents(Date, Date, String)}
+	 */
+	@Deprecated
 	public List<ResourceSyncEvent> listEvents(Date from, Date to, String scope) {
-//		SolrQuery solrQuery = new SolrQuery(buildTimeQuery(from, to));
+		List<ResourceSyncEvent> listResourceSyncEvent = new ArrayList<ResourceSyncEvent>();
+		Iterator<ResourceSyncEvent> iterator = new AuditEventCursor(getSolr(), buildEventQuery(from, to, scope, ALL_FIELDS),
+				getPageSize(), getUniqueKey());
+		while (iterator.hasNext()) {
+			listResourceSyncEvent.add(iterator.next());
+		}
+		return listResourceSyncEvent;
+	}
+
+	/**
+	 * The events of the scope between the given dates, in the order they happened.  Every
+	 * iteration runs the query again, fetching audit.page-size events at a time and only the
+	 * fields needed to list the changes (the scopes and identifiers of the events are left out).
+	 */
+	public Iterable<ResourceSyncEvent> streamEvents(Date from, Date to, String scope) {
+		final SolrQuery solrQuery = buildEventQuery(from, to, scope, CHANGE_FIELDS);
+		return () -> new AuditEventCursor(getSolr(), solrQuery, getPageSize(), getUniqueKey());
+	}
+
+	private SolrQuery buildEventQuery(Date from, Date to, String scope, String[] fields) {
 		SolrQuery solrQuery = new SolrQuery((buildTimeQuery(from, to)));
-		solrQuery.setRows(Integer.MAX_VALUE);
 		solrQuery.addSort(new SortClause(DATETIME_FIELD, ORDER.asc));
 		solrQuery.addFilterQuery(SCOPES_FIELD+":" + scope);
-//		solrQuery.addFilterQuery("scope:" + scope);
+		solrQuery.setFields(fields);
+		return solrQuery;
+	}
 
-		QueryResponse queryResponse;
-		try {
-			queryResponse = getSolr().query(solrQuery);
-		} catch (SolrServerException e) {
-			throw new RuntimeException(e.getMessage(), e);
+	private int getPageSize() {
+		return ConfigurationManager.getIntProperty("resourcesync", "audit.page-size", 1000);
+	}
+
+	private String getUniqueKey() {
+		return ConfigurationManager.getProperty("resourcesync", "audit.unique-key");
+	}
+
+	static ResourceSyncEvent toEvent(SolrDocument sd) {
+		ResourceSyncEvent rse = new ResourceSyncEvent();
+		rse.setResource_id((int) sd.getFieldValue(RESOURCE_ID_FIELD));
+		rse.setResource_type((int) sd.getFieldValue(RESOURCE_TYPE_FIELD));
+		rse.setChangetype((String) sd.getFieldValue(CHANGETYPE_FIELD));
+		rse.setDatetime((Date) sd.getFieldValue(DATETIME_FIELD));
+		rse.setHandle((String)sd.getFieldValue(HANDLE_FIELD));
+		if (sd.containsKey(SCOPES_FIELD)) {
+			rse.setScopes(toStrings(sd.getFieldValues(SCOPES_FIELD)));
 		}
-		List<ResourceSyncEvent> listResourceSyncEvent = new ArrayList<ResourceSyncEvent>();
-		// queryResponse.getResults().iterator().next().get(RESOURCE_ID_FIELD);
-		Iterator<SolrDocument> iterator = queryResponse.getResults().iterator();
-		while (iterator.hasNext()) {
-			ResourceSyncEvent rse = new ResourceSyncEvent();
-			SolrDocument sd = iterator.next();
-			rse.setResource_id((int) sd.getFieldValue(RESOURCE_ID_FIELD));
-			rse.setResource_type((int) sd.getFieldValue(RESOURCE_TYPE_FIELD));
-			rse.setChangetype((String) sd.getFieldValue(CHANGETYPE_FIELD));
-			rse.setDatetime((Date) sd.getFieldValue(DATETIME_FIELD));
-			rse.setScopes((List<String>) sd.getFieldValue(SCOPES_FIELD));
-			rse.setHandle((String)sd.getFieldValue(HANDLE_FIELD));
-			rse.setScopes((List<String>) sd.getFieldValue(EXTRA_FIELD));
-//			System.out.println("+++Resource id = "+rse.getResource_id()+" Resource Type = "+
-//					rse.getResource_type()+" changeType = "+rse.getChangetype()+ " datetime = "+rse.getDatetime()+
-//						" scopes = "+rse.getScopes());
-			listResourceSyncEvent.add(rse);
+		if (sd.containsKey(EXTRA_FIELD)) {
+			rse.setExtra(toStrings(sd.getFieldValues(EXTRA_FIELD)));
 		}
-		return listResourceSyncEvent;
+		return rse;
+	}
+
+	private static List<String> toStrings(Collection<Object> values) {
+		List<String> strings = new ArrayList<String>();
+		for (Object value : values) {
+			strings.add(String.valueOf(value));
+		}
+		return strings;
 	}
 
 	private String buildTimeQuery(Date from, Date to) {
@@ -17,7 +17,7 @@ public class ResourceSyncConfiguration {
 	
 	private static List<String> exposeBundles = null;
 	
-	public static List<String> getBundlesToExpose()
+	public static synchronized List<String> getBundlesToExpose()
     {
 		if (exposeBundles != null) {
 			return exposeBundles;
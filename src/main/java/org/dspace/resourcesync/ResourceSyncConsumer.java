@@ -8,7 +8,10 @@ package org.dspace.resourcesync;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.dspace.content.Bitstream;
@@ -28,6 +31,10 @@ import org.dspace.utils.DSpace;
 /**
  * Class for audit changes relevant for resourcesync.
  * 
+ * The changes are collected per context and written once the context has dispatched all of its
+ * events, as the net change of every resource in every scope: many edits of the same item in a
+ * transaction make a single update.
+ * 
  * @version $Revision$
  *
  * @author Andrea Bollini (andrea.bollini at 4science.it)
@@ -40,6 +47,11 @@ public class ResourceSyncConsumer implements Consumer {
 
 	private ResourceSyncAuditService resourceSyncAuditService;
 
+	/**
+	 * The changes consumed for every context since its last end(), by resource (type and id)
+	 */
+	private Map<Context, Map<Long, ResourceChanges>> pending = new HashMap<Context, Map<Long, ResourceChanges>>();
+
 
 	public void initialize() throws Exception {
 		resourceSyncAuditService = new DSpace().getServiceManager()
@@ -78,11 +90,11 @@ public class ResourceSyncConsumer implements Consumer {
 			break;
 
 		case Constants.BITSTREAM:
-			consumeBistreamEvent(event);
+			consumeBistreamEvent(ctx, event);
 			break;
 
 		case Constants.COLLECTION:
-			consumeCollectionEvent((Collection) subject, event);
+			consumeCollectionEvent(ctx, (Collection) subject, event);
 			break;
 
 		default:
@@ -93,16 +105,37 @@ public class ResourceSyncConsumer implements Consumer {
 		}
 	}
 
+	/**
+	 * Write the net changes of the context to the audit core, one event per resource and change
+	 * type
+	 */
 	public void end(Context ctx) throws Exception {
-		// No-op
+		Map<Long, ResourceChanges> changes;
+		synchronized (pending) {
+			changes = pending.remove(ctx);
+		}
+		if (changes == null) {
+			return;
+		}
+		for (ResourceChanges resource : changes.values()) {
+			for (ChangeType type : ChangeType.values()) {
+				List<String> scopes = resource.getScopes(type);
+				if (!scopes.isEmpty()) {
+					resourceSyncAuditService.addEvent(resource.resourceID, resource.resourceType, type, resource.date,
+							scopes, resource.handle, resource.identifiers);
+				}
+			}
+		}
 	}
 
 	public void finish(Context ctx) throws Exception {
-		// No-op
-
+		// whatever was not dispatched is not going to be
+		synchronized (pending) {
+			pending.remove(ctx);
+		}
 	}
 
-	private void consumeCollectionEvent(Collection collection, Event event) {
+	private void consumeCollectionEvent(Context ctx, Collection collection, Event event) {
 		int et = event.getEventType();
 		int itemID = event.getObjectID();
 
@@ -110,6 +143,9 @@ public class ResourceSyncConsumer implements Consumer {
 			return;
 		}
 
+		// the exports of the item may link to its collections
+		invalidateMetadata(itemID);
+
 		List<String> scopes = new ArrayList<String>();
 		Community[] community = null;
 		switch (et) {
@@ -123,7 +159,7 @@ public class ResourceSyncConsumer implements Consumer {
 				scopes.add(c.getHandle());
 			}
 			scopes.add(collection.getHandle());
-			addCreateEvent(Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
+			addCreateEvent(ctx, Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
 			break;
 		case Event.REMOVE:
 			try {
@@ -135,12 +171,12 @@ public class ResourceSyncConsumer implements Consumer {
 				scopes.add(c.getHandle());
 			}
 			scopes.add(collection.getHandle());
-			addRemoveEvent(Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
+			addRemoveEvent(ctx, Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
 			break;
 		}
 	}
 
-	private void consumeBistreamEvent(Event event) {
+	private void consumeBistreamEvent(Context ctx, Event event) {
 		int et = event.getEventType();
 		int bitstreamID = event.getSubjectID();
 
@@ -149,7 +185,7 @@ public class ResourceSyncConsumer implements Consumer {
 		}
 		List<String> scopes = new ArrayList<String>();
 		scopes.add(Site.getSiteHandle());
-		addRemoveEvent(Constants.BITSTREAM, bitstreamID, scopes,event.getDetail(),event.getIdentifiers());
+		addRemoveEvent(ctx, Constants.BITSTREAM, bitstreamID, scopes,event.getDetail(),event.getIdentifiers());
 	}
 
 	private void consumeItemEvent(Context context, Item item, Event event) throws SQLException {
@@ -161,34 +197,35 @@ public class ResourceSyncConsumer implements Consumer {
 				&& et != Event.DELETE) {
 			return;
 		}
+		invalidateMetadata(itemID);
 
 		List<String> scopes = new ArrayList<String>();
 		switch (et) {
 		case Event.INSTALL:
 			scopes.add(Site.getSiteHandle());
-			addCreateEvent(Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
+			addCreateEvent(context, Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
 			break;
 		case Event.MODIFY_METADATA:
-			addUpdateEvent(Constants.ITEM, itemID, getScopes(item),event.getDetail(),event.getIdentifiers());
+			addUpdateEvent(context, Constants.ITEM, itemID, getScopes(item),event.getDetail(),event.getIdentifiers());
 			break;
 		case Event.ADD:
 
 			if (isResourceSyncRelevant(bnd)) {
 				for (Bitstream b : bnd.getBitstreams()) {
-					addCreateEvent(Constants.BITSTREAM, b.getID(), getScopes(item),event.getDetail(),event.getIdentifiers());
+					addCreateEvent(context, Constants.BITSTREAM, b.getID(), getScopes(item),event.getDetail(),event.getIdentifiers());
 				}
 			}
 			break;
 		case Event.REMOVE:
 			if (isResourceSyncRelevant(bnd)) {
 				for (Bitstream b : bnd.getBitstreams()) {
-					addRemoveEvent(Constants.BITSTREAM, b.getID(), getScopes(item),event.getDetail(),event.getIdentifiers());
+					addRemoveEvent(context, Constants.BITSTREAM, b.getID(), getScopes(item),event.getDetail(),event.getIdentifiers());
 				}
 			}
 			break;
 		case Event.DELETE:
 			scopes.add(Site.getSiteHandle());
-			addRemoveEvent(Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
+			addRemoveEvent(context, Constants.ITEM, itemID, scopes,event.getDetail(),event.getIdentifiers());
 			break;
 		}
 	}
@@ -217,34 +254,111 @@ public class ResourceSyncConsumer implements Consumer {
 		}
 
 		Item item = (Item) bundle.getParentObject();
+		// the exports of the item may describe its bitstreams
+		invalidateMetadata(item.getID());
 
 		int bitID = event.getObjectID();
 		List<String> scopes = getScopes(item);
 		switch (et) {
 		case Event.ADD:
-			addCreateEvent(Constants.BITSTREAM, bitID, scopes,event.getDetail(),event.getIdentifiers());
+			addCreateEvent(context, Constants.BITSTREAM, bitID, scopes,event.getDetail(),event.getIdentifiers());
 			break;
 		case Event.REMOVE:
-			addRemoveEvent(Constants.BITSTREAM, bitID, scopes,event.getDetail(),event.getIdentifiers());
+			addRemoveEvent(context, Constants.BITSTREAM, bitID, scopes,event.getDetail(),event.getIdentifiers());
 			break;
 		}
 	}
 
-	private void addCreateEvent(int resourcetype, int resourceID, List<String> scopes,String handle, String[] identifiers) {
-		addEvent(resourcetype, resourceID, ChangeType.CREATE, scopes,handle,identifiers);
+	private void invalidateMetadata(int itemID) {
+		MetadataCache cache = MetadataCache.getInstance();
+		if (cache != null) {
+			cache.invalidate(itemID);
+		}
+	}
+
+	private void addCreateEvent(Context ctx, int resourcetype, int resourceID, List<String> scopes,String handle, String[] identifiers) {
+		addEvent(ctx, resourcetype, resourceID, ChangeType.CREATE, scopes,handle,identifiers);
 	}
 
-	private void addUpdateEvent(int resourcetype, int resourceID, List<String> scopes,String handle, String[] identifiers) {
-		addEvent(resourcetype, resourceID, ChangeType.UPDATE, scopes,handle,identifiers);
+	private void addUpdateEvent(Context ctx, int resourcetype, int resourceID, List<String> scopes,String handle, String[] identifiers) {
+		addEvent(ctx, resourcetype, resourceID, ChangeType.UPDATE, scopes,handle,identifiers);
+
+	}
 
+	private void addRemoveEvent(Context ctx, int resourcetype, int resourceID, List<String> scopes,String handle, String[] identifiers) {
+		addEvent(ctx, resourcetype, resourceID, ChangeType.REMOVE, scopes,handle,identifiers);
 	}
 
-	private void addRemoveEvent(int resourcetype, int resourceID, List<String> scopes,String handle, String[] identifiers) {
-		addEvent(resourcetype, resourceID, ChangeType.REMOVE, scopes,handle,identifiers);
+	/**
+	 * Record the change, to be written with the other changes of the context when it ends
+	 */
+	private void addEvent(Context ctx, int resourcetype, int resourceID, ChangeType eventtype, List<String> scopes,String handle, String[] identifiers) {
+		Long key = ((long) resourcetype << 32) | (resourceID & 0xffffffffL);
+		synchronized (pending) {
+			Map<Long, ResourceChanges> changes = pending.get(ctx);
+			if (changes == null) {
+				changes = new LinkedHashMap<Long, ResourceChanges>();
+				pending.put(ctx, changes);
+			}
+			ResourceChanges resource = changes.get(key);
+			if (resource == null) {
+				resource = new ResourceChanges(resourcetype, resourceID);
+				changes.put(key, resource);
+			}
+			resource.add(eventtype, scopes, new Date(), handle, identifiers);
+		}
 	}
 
-	private void addEvent(int resourcetype, int resourceID, ChangeType eventtype, List<String> scopes,String handle, String[] identifiers) {
-		resourceSyncAuditService.addEvent(resourceID, resourcetype, eventtype, new Date(), scopes,handle,identifiers);
+	/**
+	 * The net change of a resource in each of its scopes, over the events of a context.  A removal
+	 * overrides whatever came before it, a creation overrides an update, and a resource which comes
+	 * back after being removed has been updated.
+	 */
+	private static class ResourceChanges {
+		private int resourceType;
+		private int resourceID;
+		private Map<String, ChangeType> scopes = new LinkedHashMap<String, ChangeType>();
+		private Date date;
+		private String handle;
+		private String[] identifiers;
+
+		private ResourceChanges(int resourceType, int resourceID) {
+			this.resourceType = resourceType;
+			this.resourceID = resourceID;
+		}
+
+		private void add(ChangeType type, List<String> scopes, Date date, String handle, String[] identifiers) {
+			for (String scope : scopes) {
+				this.scopes.put(scope, combine(this.scopes.get(scope), type));
+			}
+			// the event is dated and described by the last change
+			this.date = date;
+			this.handle = handle;
+			this.identifiers = identifiers;
+		}
+
+		private static ChangeType combine(ChangeType previous, ChangeType next) {
+			if (previous == null || next == ChangeType.REMOVE) {
+				return next;
+			}
+			if (previous == ChangeType.REMOVE) {
+				return ChangeType.UPDATE;
+			}
+			if (previous == ChangeType.CREATE) {
+				return ChangeType.CREATE;
+			}
+			return next;
+		}
+
+		private List<String> getScopes(ChangeType type) {
+			List<String> matching = new ArrayList<String>();
+			for (Map.Entry<String, ChangeType> scope : this.scopes.entrySet()) {
+				if (scope.getValue() == type) {
+					matching.add(scope.getKey());
+				}
+			}
+			return matching;
+		}
 	}
 
 	private List<String> getScopes(Item item) throws SQLException {
@@ -35,6 +35,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 /**
  * @author Richard Jones
  * @author Andrea Bollini (andrea.bollini at 4science.it)
@@ -50,6 +55,7 @@ public class ResourceSyncGenerator
 		options.addOption("i", "init", false, "Create a fresh ResourceSync description of this repository - this will remove any previous ResourceSync documents");
 		options.addOption("u", "update", false, "Update the Change List ResourceSync document with the changes since this script last ran");
 		options.addOption("r", "rebase", false, "Update the Resource List ResourceSync document to reflect the current state of the archive, and bring the Change List up to the same level");
+		options.addOption("t", "threads", true, "Number of handles to generate concurrently, each with its own DSpace context (default: the threads option in resourcesync.cfg, or 1)");
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = parser.parse( options, args);
 
@@ -57,6 +63,10 @@ public class ResourceSyncGenerator
 		List<String> handles = buildHandleForResourceSync(context);
 
 		ResourceSyncGenerator rsg = new ResourceSyncGenerator(context, handles, null);
+		if (cmd.hasOption("t"))
+		{
+			rsg.setThreads(Integer.parseInt(cmd.getOptionValue("t")));
+		}
 
 		try
 		{
@@ -81,6 +91,7 @@ public class ResourceSyncGenerator
 		finally
 		{
 			context.abort();
+			log.info(CopyBuffers.getInstance());
 		}
 	}
 
@@ -93,6 +104,9 @@ public class ResourceSyncGenerator
 	private String outdir;
 	private List<String> handles = null;
 	private Date fromChangeDump = null; 
+	private int threads = 1;
+	private boolean singleTraversal = false;
+	private boolean dumpTraversal = false;
 
 	public static List<String> buildHandleForResourceSync(Context context) throws SQLException {
 		String capabilityList = ConfigurationManager.getProperty("resourcesync", "capabilitylists");
@@ -170,6 +184,126 @@ public class ResourceSyncGenerator
 			throw new IOException("No configuration for resourcesync.dir");
 		}
 		this.fromChangeDump = fromChangeDump;
+		this.setThreads(ConfigurationManager.getIntProperty("resourcesync", "threads", 1));
+		this.singleTraversal = handles.size() > 1
+				&& ConfigurationManager.getBooleanProperty("resourcesync", "resourcelist.single-traversal", false);
+		this.dumpTraversal = !this.singleTraversal && this.resourceDump
+				&& ConfigurationManager.getBooleanProperty("resourcesync", "resourcelist.with-resourcedump", false);
+	}
+
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Work to be done for a single handle.  Each invocation is given its own DSpace context, as
+	 * contexts (and the database connection behind them) must not be shared between threads.
+	 */
+	private interface HandleTask
+	{
+		void generate(Context context, String handle)
+				throws IOException, SQLException, ParseException;
+	}
+
+	/**
+	 * Run the task for every handle on a pool of at most {@link #threads} workers, and wait for
+	 * all of them to complete.  The first failure is rethrown once every task has finished.  The
+	 * directory of the handle is created before its task starts, whichever documents it generates.
+	 */
+	private void forEachHandle(final HandleTask task)
+			throws IOException, SQLException, ParseException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(this.threads, Math.max(1, this.handles.size())));
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try
+		{
+			for (final String handle : this.handles)
+			{
+				futures.add(executor.submit(() -> {
+					this.ensureDirectory(getOutdir(handle));
+					Context context = new Context();
+					try
+					{
+						task.generate(context, handle);
+					}
+					finally
+					{
+						context.abort();
+					}
+					return (Void) null;
+				}));
+			}
+
+			Throwable failure = null;
+			for (Future<Void> future : futures)
+			{
+				try
+				{
+					future.get();
+				}
+				catch (ExecutionException e)
+				{
+					log.error(e.getCause().getMessage(), e.getCause());
+					if (failure == null)
+					{
+						failure = e.getCause();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+			if (failure instanceof IOException)
+			{
+				throw (IOException) failure;
+			}
+			else if (failure instanceof SQLException)
+			{
+				throw (SQLException) failure;
+			}
+			else if (failure instanceof ParseException)
+			{
+				throw (ParseException) failure;
+			}
+			else if (failure instanceof RuntimeException)
+			{
+				throw (RuntimeException) failure;
+			}
+			else if (failure != null)
+			{
+				throw new IOException(failure);
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	// SimpleDateFormat is not thread safe, and the handles may be generated concurrently
+	public static String formatChangeListDate(Date date)
+	{
+		synchronized (sdfChangeList)
+		{
+			return sdfChangeList.format(date);
+		}
+	}
+
+	public static Date parseChangeListDate(String date)
+			throws ParseException
+	{
+		synchronized (sdfChangeList)
+		{
+			return sdfChangeList.parse(date);
+		}
 	}
 
 	//////////////////////////////////////////////////////////////////////////////
@@ -186,10 +320,19 @@ public class ResourceSyncGenerator
 
 		// generate the description index document
 		this.generateResourceSyncDescriptionIndex(handles);
-		for (String handle : this.handles) {
 
-			// generate the resource list
-			this.generateResourceList(handle);
+		// walk the archive only once for all the resource lists, if so configured
+		if (this.singleTraversal)
+		{
+			this.generateResourceLists();
+		}
+		this.forEachHandle((context, handle) -> {
+
+			// generate the resource list, unless it comes with the resource dump
+			if (!this.singleTraversal && !this.dumpTraversal)
+			{
+				this.generateResourceList(context, handle);
+			}
 
 			// generate the description document
 			this.generateResourceSyncDescription(handle);
@@ -197,14 +340,14 @@ public class ResourceSyncGenerator
 			// should we generate a resource dump?
 			if (this.resourceDump)
 			{
-				this.generateResourceDump(handle);
+				this.generateResourceDump(context, handle, null);
 			}
 			// generate the capability list (with a resource list, without a change list, and maybe with a resource dump)
-			this.generateCapabilityList(true, false, this.resourceDump, false,this.changeDump,handle);
+			this.generateCapabilityList(context, true, false, this.resourceDump, false,this.changeDump,handle);
 
 			// generate the blank changelist as a placeholder for the next iteration
-			this.generateBlankChangeList(handle);
-		}
+			this.generateBlankChangeList(context, handle);
+		});
 	}
 
 	public void update()
@@ -218,29 +361,21 @@ public class ResourceSyncGenerator
 		// generate the latest changelist
 		//		String clFilename = this.generateLatestChangeList();
 
-		// add to the change list archive
-		String clFilename = null;
-		HashMap<String,String> clFilenameList = new HashMap<String,String>();
-		for (String handle : this.handles) 
-		{
+		// add to the change list archive; the archive is shared by all the handles, so it is
+		// assembled once all of them are done
+		final Map<String,String> clFilenameList = new ConcurrentHashMap<String,String>();
+		this.forEachHandle((context, handle) -> {
 			
-			List<ResourceSyncEvent> rseListFiltered = new ArrayList<ResourceSyncEvent>();
-			rseListFiltered = getChange(handle);
-			// generate the latest changelist
-			clFilename = this.generateLatestChangeList(handle,rseListFiltered);
+			// generate the latest changelist, and the change dump along with it: the window of the
+			// changes is fixed once, and its events are read in a single pass for both
+			String clFilename = this.generateLatestChangeList(context, handle, this.getChangeFrom(handle), new Date(), this.resourceDump);
 			clFilenameList.put(handle,clFilename);
 
-			if (this.resourceDump)
-			{
-				this.generateChangeDump(handle,rseListFiltered);
-				//this.generateResourceDump(handle);
-			}
-
 
 			// update the last modified date in the capability list (and add the
 			// changelistarchive if necessary)
-			this.updateCapabilityList(handle);
-		}
+			this.updateCapabilityList(context, handle);
+		});
 		this.addChangeListToArchive(clFilenameList,handles);
 	}
 
@@ -250,58 +385,91 @@ public class ResourceSyncGenerator
 		this.changeDump = false;
 		// make sure that the directory exists, and that it is empty
 		this.ensureResourceSyncDirectory();
-		this.emptyResourceSyncDirectory();
+		// the zips of the current dump are kept aside, so that the unchanged files can be copied from them
+		final Map<String, List<File>> previousDumps = this.keepPreviousDumps();
+		try
+		{
+			this.emptyResourceSyncDirectory();
+			this.rebase(previousDumps);
+		}
+		finally
+		{
+			this.deleteFolder(new File(this.getPreviousDumpDir()));
+		}
+	}
 
+	private void rebase(final Map<String, List<File>> previousDumps)
+			throws IOException, SQLException, ParseException
+	{
 		// generate the description index document
 		this.generateResourceSyncDescriptionIndex(handles);
 		
-		String clFilename = null;
-		HashMap<String,String> clFilenameList = new HashMap<String,String>();
-		
-		for (String handle : this.handles) {
+		final Map<String,String> clFilenameList = new ConcurrentHashMap<String,String>();
 
-			// generate the resource list
-			this.generateResourceList(handle);
+		// walk the archive only once for all the resource lists, if so configured
+		if (this.singleTraversal)
+		{
+			this.generateResourceLists();
+		}
+		this.forEachHandle((context, handle) -> {
+
+			// generate the resource list, unless it comes with the resource dump
+			if (!this.singleTraversal && !this.dumpTraversal)
+			{
+				this.generateResourceList(context, handle);
+			}
 
 			// generate the description document
 			this.generateResourceSyncDescription(handle);
 
-			List<ResourceSyncEvent> rseListFiltered = new ArrayList<ResourceSyncEvent>();
-			rseListFiltered = getChange(handle);
 			// generate the latest changelist
-			clFilename = this.generateLatestChangeList(handle,rseListFiltered);
+			String clFilename = this.generateLatestChangeList(context, handle, this.getChangeFrom(handle), new Date(), false);
 			clFilenameList.put(handle,clFilename);
 			
 			// should we generate a resource dump?
 			if (this.resourceDump)
 			{
-				this.generateResourceDump(handle);
+				this.generateResourceDump(context, handle, previousDumps.get(handle));
 			}
 			// generate the capability list (with a resource list, without a change list, and maybe with a resource dump)
-			this.updateCapabilityList(handle);
-		}
+			this.updateCapabilityList(context, handle);
+		});
 		this.addChangeListToArchive(clFilenameList,handles);
 	}
 	
 	
-	public List<ResourceSyncEvent> getChange(String handle) {
-		Date from = null;
+	/**
+	 * @return the events of the handle since the last change list, fetched from the audit core
+	 * as they are iterated over
+	 */
+	public Iterable<ResourceSyncEvent> getChange(String handle) {
+		return this.getChange(handle, this.getChangeFrom(handle), new Date());
+	}
+
+	/**
+	 * @return the events of the handle between the given dates, fetched from the audit core as
+	 * they are iterated over
+	 */
+	private Iterable<ResourceSyncEvent> getChange(String handle, Date from, Date to) {
+		ResourceSyncAuditService auditService = new ResourceSyncAuditService();
+		return auditService.streamEvents(from, to, handle);
+	}
+
+	/**
+	 * @return the date the changes of the handle are listed from: that of its last change list,
+	 * unless another one was given
+	 */
+	private Date getChangeFrom(String handle) {
+		if (fromChangeDump != null)
+		{
+			return fromChangeDump;
+		}
 		try {
-			if (fromChangeDump == null)
-			{
-				from = this.getLastChangeListDate(handle);
-			}else
-			{
-				from = fromChangeDump;
-			}
+			return this.getLastChangeListDate(handle);
 		} catch (ParseException e) {
         	log.error(e.getMessage(),e);
+			return null;
 		}
-		Date to = new Date();
-		List<ResourceSyncEvent> rseList = new ArrayList<ResourceSyncEvent>();
-		ResourceSyncAuditService auditService = new ResourceSyncAuditService();
-		rseList = auditService.listEvents(from, to, handle);
-		return rseList;
 	}
 
 
@@ -336,6 +504,61 @@ public class ResourceSyncGenerator
 	{
 		this.emptyDirectory(this.outdir);
 	}
+
+	private String getPreviousDumpDir()
+	{
+		return this.outdir + ".previous";
+	}
+
+	/**
+	 * Move the zips of the resource dump of every handle out of the output directory, if the
+	 * resource dump is to be rebased incrementally
+	 *
+	 * @return the zips moved, by handle
+	 */
+	private Map<String, List<File>> keepPreviousDumps()
+			throws IOException
+	{
+		Map<String, List<File>> previousDumps = new HashMap<String, List<File>>();
+		File previousDir = new File(this.getPreviousDumpDir());
+		this.deleteFolder(previousDir);
+		if (!this.resourceDump || ConfigurationManager.getBooleanProperty("resourcesync", "resourcedump.onthefly")
+				|| !ConfigurationManager.getBooleanProperty("resourcesync", "resourcedump.incremental-rebase", false))
+		{
+			return previousDumps;
+		}
+
+		for (String handle : this.handles)
+		{
+			File[] files = new File(getOutdir(handle)).listFiles();
+			if (files == null)
+			{
+				continue;
+			}
+			File keepDir = new File(previousDir, handle.replaceAll("/", "-"));
+			List<File> zips = new ArrayList<File>();
+			for (File file : files)
+			{
+				if (!file.getName().equals(FileNames.resourceDumpZip) && !FileNames.isResourceDumpPart(file))
+				{
+					continue;
+				}
+				this.ensureDirectory(previousDir.getPath());
+				this.ensureDirectory(keepDir.getPath());
+				File kept = new File(keepDir, file.getName());
+				if (file.renameTo(kept))
+				{
+					zips.add(kept);
+				}
+				else
+				{
+					log.warn("Unable to keep " + file + " aside, its files will be generated again");
+				}
+			}
+			previousDumps.put(handle, zips);
+		}
+		return previousDumps;
+	}
 	private void deleteFolder(File folder) {
 		File[] files = folder.listFiles();
 		if(files!=null) {
@@ -418,7 +641,7 @@ public class ResourceSyncGenerator
 				if (FileNames.isChangeDump(f))
 				{
 					String dr = FileNames.changeDumpDate(f);
-					Date possibleFrom = ResourceSyncGenerator.sdfChangeList.parse(dr);
+					Date possibleFrom = ResourceSyncGenerator.parseChangeListDate(dr);
 					if (possibleFrom.getTime() > from.getTime())
 					{
 						from = possibleFrom;
@@ -450,7 +673,7 @@ public class ResourceSyncGenerator
 				if (FileNames.isChangeList(f))
 				{
 					String dr = FileNames.changeListDate(f);
-					Date possibleFrom = ResourceSyncGenerator.sdfChangeList.parse(dr);
+					Date possibleFrom = ResourceSyncGenerator.parseChangeListDate(dr);
 					if (possibleFrom.getTime() > from.getTime())
 					{
 						from = possibleFrom;
@@ -475,7 +698,7 @@ public class ResourceSyncGenerator
 				if (FileNames.isChangeList(f))
 				{
 					String dr = FileNames.changeListDate(f);
-					Date possibleFrom = ResourceSyncGenerator.sdfChangeList.parse(dr);
+					Date possibleFrom = ResourceSyncGenerator.parseChangeListDate(dr);
 					if (possibleFrom.getTime() > from.getTime())
 					{
 						from = possibleFrom;
@@ -529,14 +752,14 @@ public class ResourceSyncGenerator
 
 
 
-	private void updateCapabilityList(String handle)
+	private void updateCapabilityList(Context context, String handle)
 			throws IOException, ParseException
 	{
 		// just regenerate the capability list in its entirity
-		this.generateCapabilityList(true, false, this.resourceDump, true,this.changeDump,handle);
+		this.generateCapabilityList(context, true, false, this.resourceDump, true,this.changeDump,handle);
 	}
 
-	private void generateCapabilityList(boolean resourceList, boolean changeListArchive, boolean resourceDump,
+	private void generateCapabilityList(Context context, boolean resourceList, boolean changeListArchive, boolean resourceDump,
 			boolean changeList,boolean changeDump,String handle)
 					throws IOException, ParseException
 	{
@@ -556,35 +779,38 @@ public class ResourceSyncGenerator
 		}
 		FileOutputStream fos = this.getFileOutputStream(FileNames.capabilityList,handle);
 
-		DSpaceCapabilityList dcl = new DSpaceCapabilityList(this.context, resourceList, changeListArchive,
+		DSpaceCapabilityList dcl = new DSpaceCapabilityList(context, resourceList, changeListArchive,
 				resourceDump, changeList, changeDump, changeListUrl,changeDumpUrl,ums.get(handle));
+		dcl.setResourceListIndex(new File(getOutdir(handle), FileNames.resourceListIndex).exists());
 		dcl.serialise(fos);
 
 		fos.close();
 	}
 
-	private void generateResourceList(String handle)
+	private void generateResourceLists()
 			throws SQLException, IOException
 	{
-		String directoryName;
-		String path;
-		if (!handle.equals(Site.getSiteHandle()))
+		Map<String, String> dirs = new HashMap<String, String>();
+		for (String handle : this.handles)
 		{
-			directoryName = handle.replace("/", "-");
-			path = ConfigurationManager.getProperty("resourcesync", "resourcesync.dir");
-			path = path.concat("/"+directoryName);		
-			File directory = new File(path);
-			directory.mkdir();
+			this.ensureDirectory(getOutdir(handle));
+			dirs.put(handle, getOutdir(handle));
 		}
-		FileOutputStream fos = this.getFileOutputStream(File.separator+FileNames.resourceList,handle);
 
-		DSpaceResourceList drl = new DSpaceResourceList(this.context);
-		drl.serialise(fos,handle,this.ums.get(handle));
+		DSpaceScopedResourceList drl = new DSpaceScopedResourceList(this.context);
+		drl.serialise(dirs, this.ums);
+	}
 
-		fos.close();
+	private void generateResourceList(Context context, String handle)
+			throws SQLException, IOException
+	{
+		// the resource list is written straight into the directory, split over several documents
+		// (with an index) if it is too large
+		DSpaceResourceList drl = new DSpaceResourceList(context);
+		drl.serialise(getOutdir(handle),handle,this.ums.get(handle));
 	}
     
-	private void generateResourceDump(String handle)
+	private void generateResourceDump(Context context, String handle, List<File> previousDumps)
 			throws IOException, SQLException
 	{
 		if (handle.equals(Site.getSiteHandle()))
@@ -592,53 +818,74 @@ public class ResourceSyncGenerator
 			this.deleteFile(FileNames.resourceDump);
 			this.deleteFile(FileNames.resourceDumpZip);
 		}
-		DSpaceResourceDump drd = new DSpaceResourceDump(this.context);
+		DSpaceResourceDump drd = new DSpaceResourceDump(context);
+		drd.setPreviousDumps(previousDumps);
+		drd.setWithResourceList(this.dumpTraversal);
 		drd.serialise(getOutdir(handle), handle, ums.get(handle));
 	}
-	private void generateChangeDump(String handle,List<ResourceSyncEvent> rseList)
+	private void generateChangeDump(Context context, String handle,Iterable<ResourceSyncEvent> rseList)
 			throws IOException, SQLException
 	{
-		DSpaceChangeDump drd = new DSpaceChangeDump(this.context);
+		DSpaceChangeDump drd = new DSpaceChangeDump(context);
 		drd.serialiseChangeDump(getOutdir(handle), ums.get(handle),rseList);
 	}
-	public void generateChangeDump(String handle,List<ResourceSyncEvent> rseList,OutputStream os)
+	public void generateChangeDump(String handle,Iterable<ResourceSyncEvent> rseList,OutputStream os)
 			throws IOException, SQLException
 	{
 		DSpaceChangeDump drd = new DSpaceChangeDump(this.context);
 		drd.serialiseChangeDump(getOutdir(handle), ums.get(handle),rseList,os);
 	}
 
-	private String generateLatestChangeList(String handle,List<ResourceSyncEvent> rseListFiltered)
+	/**
+	 * Write the change list of the events of the handle between the given dates and, if asked,
+	 * the change dump of the same events, from a single pass over them
+	 */
+	private String generateLatestChangeList(Context context, String handle, Date from, Date to, boolean withChangeDump)
 			throws ParseException, IOException, SQLException
 	{
-		
-		Date from = this.getLastChangeListDate(handle);
-		Date to = new Date();
-		String tr = sdfChangeList.format(to);
+		String tr = formatChangeListDate(to);
 		String filename = FileNames.changeList(tr);
+		Iterable<ResourceSyncEvent> events = this.getChange(handle, from, to);
 		FileOutputStream fos = this.getFileOutputStream(filename,handle);
-		DSpaceChangeList dcl = new DSpaceChangeList(this.context, from, to,ums.get(handle)); //TO-DO
-		dcl.serialiseForDump(fos,ums.get(handle),rseListFiltered);
+		try
+		{
+			DSpaceChangeList dcl = new DSpaceChangeList(context, from, to,ums.get(handle));
+			if (withChangeDump)
+			{
+				// the change dump goes through the events, handing every one of them over to the change list
+				dcl.open(fos, ums.get(handle));
+				this.generateChangeDump(context, handle, dcl.passThrough(events));
+				dcl.close();
+			}
+			else
+			{
+				dcl.serialiseForDump(fos,ums.get(handle),events);
+			}
+		}
+		finally
+		{
+			fos.close();
+		}
 
 		return filename;
 	}
 
-	private void generateBlankChangeList(String handle)
+	private void generateBlankChangeList(Context context, String handle)
 			throws IOException, SQLException, ParseException
 	{
 
 		Date to = new Date();
-		String tr = ResourceSyncGenerator.sdfChangeList.format(to);
+		String tr = ResourceSyncGenerator.formatChangeListDate(to);
 
 		FileOutputStream fos = this.getFileOutputStream(FileNames.changeList(tr),handle);
 
 		// generate the changelist for the period (which is of 0 length)
-		DSpaceChangeList dcl = new DSpaceChangeList(this.context, to, to,ums.get(handle));
+		DSpaceChangeList dcl = new DSpaceChangeList(context, to, to,ums.get(handle));
 		dcl.serialise(fos);
 		fos.close();
 	}
 
-	private void addChangeListToArchive(HashMap<String,String> filename,List<String> handles)
+	private void addChangeListToArchive(Map<String,String> filename,List<String> handles)
 			throws IOException, ParseException
 	{
 		
@@ -653,7 +900,7 @@ public class ResourceSyncGenerator
 
 			// get the date of the new changelist (it is encoded in the filename)
 			String dr = FileNames.changeListDate(filename.get(handle));
-			Date date = ResourceSyncGenerator.sdfChangeList.parse(dr);
+			Date date = ResourceSyncGenerator.parseChangeListDate(dr);
 
 			dcla.addChangeList(loc, date);
 		}
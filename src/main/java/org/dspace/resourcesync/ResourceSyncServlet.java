@@ -26,7 +26,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -124,10 +123,9 @@ public class ResourceSyncServlet extends HttpServlet
 	        			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
 	                    return;
 	        		}
-	        		Date from = ResourceSyncGenerator.sdfChangeList.parse(date);
-	        		List <ResourceSyncEvent> rseList = new ArrayList<ResourceSyncEvent>();
+	        		Date from = ResourceSyncGenerator.parseChangeListDate(date);
 	        		ResourceSyncGenerator rsg = new ResourceSyncGenerator(context, handles, from);
-	        		rseList = rsg.getChange(handle);
+	        		Iterable<ResourceSyncEvent> rseList = rsg.getChange(handle);
 	        		rsg.generateChangeDump(handle, rseList, servletOutputStream);
         		}
         		else
@@ -256,17 +254,14 @@ public class ResourceSyncServlet extends HttpServlet
         }
 
         InputStream is = new FileInputStream(f);
-        OutputStream os = resp.getOutputStream();
-
-        byte[] buffer = new byte[102400]; // 100k chunks
-        int len = is.read(buffer);
-        while (len != -1)
+        try
         {
-            os.write(buffer, 0, len);
-            len = is.read(buffer);
+            CopyBuffers.copy(is, resp.getOutputStream());
+        }
+        finally
+        {
+            is.close();
         }
-
-        return;
     }
 
 }
@@ -0,0 +1,309 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.openarchives.resourcesync.ResourceList;
+import org.openarchives.resourcesync.ResourceSync;
+import org.openarchives.resourcesync.ResourceSyncEntry;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * A resource list which is split over several documents once it grows beyond the given number of
+ * entries or bytes, as required by the sitemap protocol (50,000 urls and 50MB per document).
+ *
+ * The parts are written to resourcelist_0001.xml, resourcelist_0002.xml, ... and each of them is
+ * complete, flushed and closed before the next one is started.  When more than one part has been
+ * produced a resource list index pointing to all of them is written as well; if everything fits
+ * in a single part it is simply renamed to resourcelist.xml.  Every part of an index links back to
+ * it with rs:ln rel="index".  When the caller knows up front that there will be an index (see
+ * {@link #setIndexExpected(boolean)}) the link is written with every part, and the index is written
+ * even if a single part is produced; otherwise the link is added to the first part, by copying
+ * it, once it turns out to be full.
+ *
+ * The parts are cut from a single walk over the items, one after the other, so they cannot be
+ * produced concurrently: a part only ends once the entries before it are known.
+ */
+public class SplitResourceList extends ResourceList implements Closeable
+{
+    private static final Namespace NS_SITEMAP = Namespace.getNamespace("sm", "http://www.sitemaps.org/schemas/sitemap/0.9");
+    private static final Namespace NS_RS = Namespace.getNamespace("rs", "http://www.openarchives.org/rs/terms/");
+    private static final String REL_INDEX = "index";
+
+    private String dir;
+    private UrlManager um;
+    private int maxEntries;
+    private long maxBytes;
+    private boolean omitPaths = false;
+    private boolean indexExpected = false;
+
+    private StreamingResourceList current = null;
+    private OutputStream currentOut = null;
+    private List<String> parts = new ArrayList<String>();
+    private List<Date> partDates = new ArrayList<Date>();
+
+    private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+    /**
+     * @param dir           the directory to write the parts (and the index) to
+     * @param um            the url manager of the capability list the resource list belongs to
+     * @param maxEntries    the maximum number of entries in a part
+     * @param maxBytes      the (approximate) maximum size in bytes of a part
+     */
+    public SplitResourceList(String dir, UrlManager um, int maxEntries, long maxBytes)
+    {
+        super(null, false);
+        this.dir = dir;
+        this.um = um;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Leave the dump paths out of the entries, see {@link StreamingResourceList#setOmitPaths(boolean)}
+     */
+    public void setOmitPaths(boolean omitPaths)
+    {
+        this.omitPaths = omitPaths;
+    }
+
+    /**
+     * Write the resource list as an index and parts whatever its size, linking every part to the
+     * index as it is written
+     */
+    public void setIndexExpected(boolean indexExpected)
+    {
+        this.indexExpected = indexExpected;
+    }
+
+    @Override
+    public void addEntry(ResourceSyncEntry entry)
+    {
+        try
+        {
+            if (this.current == null || this.isFull())
+            {
+                this.nextPart();
+            }
+            this.current.addEntry(entry);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of parts written so far
+     */
+    public int getParts()
+    {
+        return parts.size();
+    }
+
+    public void close()
+            throws IOException
+    {
+        // an empty archive still gets an (empty) resource list
+        if (this.current == null)
+        {
+            this.nextPart();
+        }
+        this.closePart();
+
+        if (this.parts.size() == 1 && !this.indexExpected)
+        {
+            File part = new File(this.dir, this.parts.get(0));
+            File single = new File(this.dir, FileNames.resourceList);
+            if (single.exists())
+            {
+                single.delete();
+            }
+            if (!part.renameTo(single))
+            {
+                throw new IOException("Unable to rename " + part + " to " + single);
+            }
+            return;
+        }
+
+        if (!this.indexExpected)
+        {
+            this.addIndexLink(new File(this.dir, this.parts.get(0)));
+        }
+        this.writeIndex();
+    }
+
+    private boolean isFull()
+    {
+        return this.current.getEntries() >= this.maxEntries || this.current.getBytes() >= this.maxBytes;
+    }
+
+    private void nextPart()
+            throws IOException
+    {
+        this.closePart();
+
+        String filename = FileNames.resourceListPart(this.parts.size() + 1);
+        this.parts.add(filename);
+        this.partDates.add(new Date());
+
+        ResourceList header = new ResourceList(this.um.capabilityList(), false);
+        header.setLastModified(new Date());
+        if (this.indexExpected || this.parts.size() > 1)
+        {
+            header.addLn(REL_INDEX, this.um.resourceListIndex());
+        }
+        this.currentOut = new FileOutputStream(new File(this.dir, filename));
+        this.current = new StreamingResourceList(header, this.currentOut);
+        this.current.setOmitPaths(this.omitPaths);
+    }
+
+    private void closePart()
+            throws IOException
+    {
+        if (this.current == null)
+        {
+            return;
+        }
+        try
+        {
+            this.current.close();
+        }
+        finally
+        {
+            this.currentOut.close();
+            this.current = null;
+            this.currentOut = null;
+        }
+    }
+
+    /**
+     * Add the link to the index to the header of a part written before there was to be an index,
+     * copying the part through a StAX reader
+     */
+    private void addIndexLink(File part)
+            throws IOException
+    {
+        File tmp = new File(this.dir, part.getName() + ".tmp");
+        InputStream in = new BufferedInputStream(new FileInputStream(part));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try
+        {
+            XMLEventReader reader = XMLInputFactory.newInstance().createXMLEventReader(in, "UTF-8");
+            XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+            XMLEventFactory events = XMLEventFactory.newInstance();
+            int depth = 0;
+            boolean added = false;
+            while (reader.hasNext())
+            {
+                XMLEvent event = reader.nextEvent();
+                // the link goes after the metadata of the document, before its first entry
+                boolean entryStart = event.isStartElement() && depth == 1;
+                boolean rootEnd = event.isEndElement() && depth == 1;
+                if (!added && ((entryStart && !NS_RS.getURI().equals(event.asStartElement().getName().getNamespaceURI())) || rootEnd))
+                {
+                    writer.add(events.createStartElement(NS_RS.getPrefix(), NS_RS.getURI(), "ln"));
+                    writer.add(events.createAttribute("rel", REL_INDEX));
+                    writer.add(events.createAttribute("href", this.um.resourceListIndex()));
+                    writer.add(events.createEndElement(NS_RS.getPrefix(), NS_RS.getURI(), "ln"));
+                    writer.add(events.createCharacters("\n"));
+                    added = true;
+                }
+                if (event.isStartElement())
+                {
+                    depth++;
+                }
+                else if (event.isEndElement())
+                {
+                    depth--;
+                }
+                writer.add(event);
+            }
+            writer.flush();
+            writer.close();
+            reader.close();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        if (!part.delete() || !tmp.renameTo(part))
+        {
+            throw new IOException("Unable to replace " + part + " with " + tmp);
+        }
+    }
+
+    private void writeIndex()
+            throws IOException
+    {
+        Element root = new Element("sitemapindex", NS_SITEMAP);
+        root.addNamespaceDeclaration(NS_RS);
+
+        Element md = new Element("md", NS_RS);
+        md.setAttribute("capability", ResourceSync.CAPABILITY_RESOURCELIST);
+        md.setAttribute("at", this.sdf.format(new Date()));
+        root.addContent(md);
+
+        Element up = new Element("ln", NS_RS);
+        up.setAttribute("rel", ResourceSync.REL_UP);
+        up.setAttribute("href", this.um.capabilityList());
+        root.addContent(up);
+
+        for (int i = 0; i < this.parts.size(); i++)
+        {
+            Element sitemap = new Element("sitemap", NS_SITEMAP);
+            Element loc = new Element("loc", NS_SITEMAP);
+            loc.setText(this.um.resourceListPart(this.parts.get(i)));
+            sitemap.addContent(loc);
+            Element partMd = new Element("md", NS_RS);
+            partMd.setAttribute("at", this.sdf.format(this.partDates.get(i)));
+            sitemap.addContent(partMd);
+            root.addContent(sitemap);
+        }
+
+        OutputStream out = new FileOutputStream(new File(this.dir, FileNames.resourceListIndex));
+        try
+        {
+            XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat());
+            outputter.output(new Document(root), out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
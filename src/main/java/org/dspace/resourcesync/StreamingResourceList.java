@@ -0,0 +1,270 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.jdom.Attribute;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.jdom.Text;
+import org.openarchives.resourcesync.ResourceList;
+import org.openarchives.resourcesync.ResourceSyncDocument;
+import org.openarchives.resourcesync.ResourceSyncEntry;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A resource list which writes its entries to the output stream as soon as they are added,
+ * instead of keeping them all in memory until the document is serialised.  The memory needed to
+ * produce a resource list is therefore constant, whatever the size of the archive.
+ *
+ * The root element and the document level metadata (rs:md and rs:ln) are taken from a header
+ * document, which should have no entries of its own, and may be of any kind (a change list
+ * streams its entries the same way); {@link #close()} must be called once all the entries have
+ * been added to complete the document.
+ */
+public class StreamingResourceList extends ResourceList implements Closeable
+{
+    private static XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private static final Namespace NS_RS = Namespace.getNamespace("rs", "http://www.openarchives.org/rs/terms/");
+
+    private ResourceSyncDocument header;
+    private OutputStream out;
+    private CountingOutputStream counter;
+    private XMLStreamWriter writer;
+    private boolean started = false;
+    private boolean closed = false;
+    private int entries = 0;
+    private boolean omitPaths = false;
+
+    public StreamingResourceList(ResourceSyncDocument header, OutputStream out)
+            throws IOException
+    {
+        super(null, false);
+        this.header = header;
+        this.out = new BufferedOutputStream(out);
+        // the count is taken above the buffer, so that it is up to date without flushing the buffer
+        this.counter = new CountingOutputStream(new BufferingOutputStream(this.out));
+        try
+        {
+            this.writer = outputFactory.createXMLStreamWriter(this.counter, "UTF-8");
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Leave the dump paths (the path attribute of rs:md) out of the entries, for a resource list
+     * whose entries are shared with the manifest of a resource dump
+     */
+    public void setOmitPaths(boolean omitPaths)
+    {
+        this.omitPaths = omitPaths;
+    }
+
+    @Override
+    public void addEntry(ResourceSyncEntry entry)
+    {
+        try
+        {
+            this.start();
+            Element element = entry.getElement();
+            writeElement(this.writer, this.omitPaths ? withoutPath(element) : element);
+            this.writer.writeCharacters("\n");
+            // hand the entry over to the buffer, so that the byte count is up to date; this does not
+            // reach the underlying stream
+            this.writer.flush();
+            this.entries++;
+        }
+        catch (XMLStreamException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public int getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return the number of bytes written so far, excluding the closing of the document
+     */
+    public long getBytes()
+    {
+        return this.counter.getByteCount();
+    }
+
+    /**
+     * Complete the document and flush it to the underlying stream, which is left open
+     */
+    public void close()
+            throws IOException
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+        try
+        {
+            this.start();
+            this.writer.writeEndElement();
+            this.writer.writeEndDocument();
+            this.writer.flush();
+            this.out.flush();
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    private void start()
+            throws XMLStreamException
+    {
+        if (this.started)
+        {
+            return;
+        }
+        this.started = true;
+
+        Element root = this.header.getElement();
+        this.writer.writeStartDocument("UTF-8", "1.0");
+        this.writer.writeCharacters("\n");
+        writeStartElement(this.writer, root);
+        this.writer.writeCharacters("\n");
+        for (Object child : root.getChildren())
+        {
+            writeElement(this.writer, (Element) child);
+            this.writer.writeCharacters("\n");
+        }
+    }
+
+    /**
+     * Passes everything on to the buffer but the flushes of the XML writer, which would otherwise
+     * cost a write to the underlying stream for every entry
+     */
+    private static class BufferingOutputStream extends FilterOutputStream
+    {
+        private BufferingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+    }
+
+    /**
+     * @return the entry, or a copy of it without the path attribute of its rs:md
+     */
+    private static Element withoutPath(Element element)
+    {
+        Element md = element.getChild("md", NS_RS);
+        if (md == null || md.getAttribute("path") == null)
+        {
+            return element;
+        }
+        Element copy = (Element) element.clone();
+        copy.getChild("md", NS_RS).removeAttribute("path");
+        return copy;
+    }
+
+    /**
+     * Write the given element, its attributes and all of its content
+     */
+    static void writeElement(XMLStreamWriter writer, Element element)
+            throws XMLStreamException
+    {
+        writeStartElement(writer, element);
+        for (Object content : element.getContent())
+        {
+            if (content instanceof Element)
+            {
+                writeElement(writer, (Element) content);
+            }
+            else if (content instanceof Text)
+            {
+                writer.writeCharacters(((Text) content).getText());
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Open the given element, declaring any namespace that is not yet in scope, and write its
+     * attributes
+     */
+    static void writeStartElement(XMLStreamWriter writer, Element element)
+            throws XMLStreamException
+    {
+        writer.writeStartElement(element.getNamespacePrefix(), element.getName(), element.getNamespaceURI());
+        declareNamespace(writer, element.getNamespace());
+        for (Object ns : element.getAdditionalNamespaces())
+        {
+            declareNamespace(writer, (Namespace) ns);
+        }
+        for (Object a : element.getAttributes())
+        {
+            Attribute attribute = (Attribute) a;
+            if ("".equals(attribute.getNamespaceURI()))
+            {
+                writer.writeAttribute(attribute.getName(), attribute.getValue());
+            }
+            else
+            {
+                declareNamespace(writer, attribute.getNamespace());
+                writer.writeAttribute(attribute.getNamespacePrefix(), attribute.getNamespaceURI(),
+                        attribute.getName(), attribute.getValue());
+            }
+        }
+    }
+
+    private static void declareNamespace(XMLStreamWriter writer, Namespace ns)
+            throws XMLStreamException
+    {
+        if ("".equals(ns.getURI()))
+        {
+            return;
+        }
+        if (ns.getURI().equals(writer.getNamespaceContext().getNamespaceURI(ns.getPrefix())))
+        {
+            return;
+        }
+        if ("".equals(ns.getPrefix()))
+        {
+            writer.setDefaultNamespace(ns.getURI());
+            writer.writeDefaultNamespace(ns.getURI());
+        }
+        else
+        {
+            writer.setPrefix(ns.getPrefix(), ns.getURI());
+            writer.writeNamespace(ns.getPrefix(), ns.getURI());
+        }
+    }
+}
@@ -48,6 +48,16 @@ public class UrlManager
         return this.base + FileNames.resourceList;
     }
 
+    public String resourceListIndex()
+    {
+        return this.base + FileNames.resourceListIndex;
+    }
+
+    public String resourceListPart(String filename)
+    {
+        return this.base + filename;
+    }
+
     public String changeListArchive()
     {
         return this.base + FileNames.changeListArchive;
@@ -67,6 +77,11 @@ public class UrlManager
     {
         return this.base + FileNames.resourceDumpZip;
     }
+
+    public String resourceDumpPart(String filename)
+    {
+        return this.base + filename;
+    }
     public String changeDump(String filename)
     {
     	return this.base + filename;
@@ -0,0 +1,221 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.dspace.core.ConfigurationManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Decides how every file of a dump is compressed, from its mime type and size, so that no time is
+ * spent deflating content which is already compressed (PDFs, images, archives...) or too small to
+ * gain anything.
+ *
+ * The policy is configured with
+ *
+ *   zip.compression.default = deflate:6
+ *   zip.compression.types = application/pdf=store, image/*=store, text/xml=deflate:9
+ *   zip.compression.min-size = 512
+ *
+ * where the order of the types does not matter: a file gets the level of its exact mime type
+ * (parameters such as charset are ignored) if there is one, then that of its major type
+ * ("image/*"), and the default otherwise.  Files smaller than min-size bytes are always stored.  A stored file whose content is known up
+ * front is written as a STORED zip entry; content which is streamed into the zip is written with
+ * DEFLATE at level 0 instead, as a STORED entry needs its checksum before its content.
+ */
+public class ZipCompressionPolicy
+{
+    private static Logger log = Logger.getLogger(ZipCompressionPolicy.class);
+
+    /** the level standing for "store without compression" */
+    public static final int STORE = -2;
+
+    private int defaultLevel;
+    private long minSize;
+    private Map<String, Integer> levels = new HashMap<String, Integer>();
+
+    public ZipCompressionPolicy(int defaultLevel, long minSize)
+    {
+        this.defaultLevel = defaultLevel;
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return the policy configured in resourcesync.cfg
+     */
+    public static ZipCompressionPolicy getConfigured()
+    {
+        String def = ConfigurationManager.getProperty("resourcesync", "zip.compression.default");
+        long minSize = ConfigurationManager.getLongProperty("resourcesync", "zip.compression.min-size", 0L);
+        ZipCompressionPolicy policy = new ZipCompressionPolicy(parseLevel(def, Deflater.DEFAULT_COMPRESSION), minSize);
+
+        String types = ConfigurationManager.getProperty("resourcesync", "zip.compression.types");
+        if (types != null)
+        {
+            for (String bit : types.split(","))
+            {
+                String[] pair = bit.split("=");
+                if (pair.length != 2)
+                {
+                    continue;
+                }
+                policy.setLevel(pair[0].trim().toLowerCase(), parseLevel(pair[1], Deflater.DEFAULT_COMPRESSION));
+            }
+        }
+        return policy;
+    }
+
+    /**
+     * Set the level for a mime type, or for a major type ("image/*")
+     */
+    public void setLevel(String mimeType, int level)
+    {
+        this.levels.put(mimeType, level);
+    }
+
+    /**
+     * @param mimeType  the mime type of the file, if known
+     * @param size      the size of the file, or -1 if it is not known
+     * @return the DEFLATE level to use for the file, or {@link #STORE}
+     */
+    public int getLevel(String mimeType, long size)
+    {
+        if (size >= 0 && size < this.minSize)
+        {
+            return STORE;
+        }
+        if (mimeType != null)
+        {
+            String type = mimeType.toLowerCase();
+            int semicolon = type.indexOf(';');
+            if (semicolon >= 0)
+            {
+                type = type.substring(0, semicolon).trim();
+            }
+            Integer level = this.levels.get(type);
+            if (level == null && type.indexOf('/') > 0)
+            {
+                level = this.levels.get(type.substring(0, type.indexOf('/')) + "/*");
+            }
+            if (level != null)
+            {
+                return level;
+            }
+        }
+        return this.defaultLevel;
+    }
+
+    /**
+     * Start an entry whose content is to be streamed into the zip
+     */
+    public void putNextEntry(ZipOutputStream zos, String entryName, String mimeType, long size)
+            throws IOException
+    {
+        int level = this.getLevel(mimeType, size);
+        zos.setMethod(ZipOutputStream.DEFLATED);
+        zos.setLevel(level == STORE ? Deflater.NO_COMPRESSION : level);
+        zos.putNextEntry(new ZipEntry(entryName));
+    }
+
+    /**
+     * Write a complete entry whose content is known
+     */
+    public void writeEntry(ZipOutputStream zos, String entryName, String mimeType, byte[] content, int length)
+            throws IOException
+    {
+        ZipEntry entry = new ZipEntry(entryName);
+        int level = this.getLevel(mimeType, length);
+        if (level == STORE)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(content, 0, length);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(length);
+            entry.setCompressedSize(length);
+            entry.setCrc(crc.getValue());
+        }
+        else
+        {
+            zos.setMethod(ZipOutputStream.DEFLATED);
+            zos.setLevel(level);
+        }
+        zos.putNextEntry(entry);
+        zos.write(content, 0, length);
+        zos.closeEntry();
+    }
+
+    /**
+     * Write a complete entry from a buffer holding its content, without copying it
+     */
+    public void writeEntry(ZipOutputStream zos, String entryName, String mimeType, ByteArrayOutputStream content)
+            throws IOException
+    {
+        ZipEntry entry = new ZipEntry(entryName);
+        int level = this.getLevel(mimeType, content.size());
+        if (level == STORE)
+        {
+            CRC32 crc = new CRC32();
+            content.writeTo(new CheckedOutputStream(new NullOutputStream(), crc));
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.size());
+            entry.setCompressedSize(content.size());
+            entry.setCrc(crc.getValue());
+        }
+        else
+        {
+            zos.setMethod(ZipOutputStream.DEFLATED);
+            zos.setLevel(level);
+        }
+        zos.putNextEntry(entry);
+        content.writeTo(zos);
+        zos.closeEntry();
+    }
+
+    private static int parseLevel(String value, int defaultLevel)
+    {
+        if (value == null || "".equals(value.trim()))
+        {
+            return defaultLevel;
+        }
+        String v = value.trim().toLowerCase();
+        if ("store".equals(v) || "stored".equals(v))
+        {
+            return STORE;
+        }
+        if (v.startsWith("deflate"))
+        {
+            int colon = v.indexOf(':');
+            if (colon < 0)
+            {
+                return Deflater.DEFAULT_COMPRESSION;
+            }
+            try
+            {
+                int level = Integer.parseInt(v.substring(colon + 1).trim());
+                if (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION)
+                {
+                    return level;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                // fall through to the warning
+            }
+        }
+        log.warn("Unrecognised zip compression \"" + value + "\", using the default");
+        return defaultLevel;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryItemEnumeratorTest
+{
+    /**
+     * Stand-in for the Discovery core: answers cursorMark queries over a fixed list of items, the
+     * cursor being the position of the next document
+     */
+    private static class CursorSolrServer extends SolrServer
+    {
+        private List<Integer> ids;
+        private List<SolrParams> requests = new ArrayList<SolrParams>();
+
+        CursorSolrServer(Integer... ids)
+        {
+            this.ids = Arrays.asList(ids);
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request)
+        {
+            SolrParams params = request.getParams();
+            this.requests.add(params);
+
+            String cursor = params.get(CursorMarkParams.CURSOR_MARK_PARAM);
+            int from = CursorMarkParams.CURSOR_MARK_START.equals(cursor) ? 0 : Integer.parseInt(cursor);
+            int to = Math.min(this.ids.size(), from + params.getInt(CommonParams.ROWS));
+
+            SolrDocumentList docs = new SolrDocumentList();
+            docs.setNumFound(this.ids.size());
+            for (int i = from; i < to; i++)
+            {
+                SolrDocument doc = new SolrDocument();
+                doc.addField("search.resourceid", this.ids.get(i));
+                docs.add(doc);
+            }
+
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("response", docs);
+            response.add(CursorMarkParams.CURSOR_MARK_NEXT, from == to ? cursor : String.valueOf(to));
+            return response;
+        }
+
+        @Override
+        public void shutdown()
+        {
+        }
+    }
+
+    @Test
+    public void testPagesThroughAllItems()
+            throws Exception
+    {
+        CursorSolrServer solr = new CursorSolrServer(3, 1, 4, 15, 9, 2, 6);
+        DiscoveryItemEnumerator enumerator = new DiscoveryItemEnumerator(solr, null, 3);
+
+        assertEquals(Arrays.asList(3, 1, 4), enumerator.nextPage());
+        assertEquals(Arrays.asList(15, 9, 2), enumerator.nextPage());
+        assertEquals(Arrays.asList(6), enumerator.nextPage());
+        assertTrue(enumerator.nextPage().isEmpty());
+        assertTrue(enumerator.nextPage().isEmpty());
+
+        // no query is sent once the cursor has stopped moving
+        assertEquals(4, solr.requests.size());
+        assertEquals(CursorMarkParams.CURSOR_MARK_START, solr.requests.get(0).get(CursorMarkParams.CURSOR_MARK_PARAM));
+        assertEquals("3", solr.requests.get(1).get(CursorMarkParams.CURSOR_MARK_PARAM));
+        assertEquals("search.uniqueid asc", solr.requests.get(0).get(CommonParams.SORT));
+    }
+
+    @Test
+    public void testExactMultipleOfPageSize()
+            throws Exception
+    {
+        CursorSolrServer solr = new CursorSolrServer(1, 2, 3, 4);
+        DiscoveryItemEnumerator enumerator = new DiscoveryItemEnumerator(solr, null, 2);
+
+        assertEquals(Arrays.asList(1, 2), enumerator.nextPage());
+        assertEquals(Arrays.asList(3, 4), enumerator.nextPage());
+        assertTrue(enumerator.nextPage().isEmpty());
+    }
+
+    @Test
+    public void testOnlyArchivedDiscoverableItems()
+            throws Exception
+    {
+        CursorSolrServer solr = new CursorSolrServer();
+        DiscoveryItemEnumerator enumerator = new DiscoveryItemEnumerator(solr, null, 10);
+
+        assertTrue(enumerator.nextPage().isEmpty());
+        List<String> filters = Arrays.asList(solr.requests.get(0).getParams(CommonParams.FQ));
+        assertTrue(filters.contains("-withdrawn:true"));
+        assertTrue(filters.contains("-discoverable:false"));
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.dspace.core.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes archives through the assembler and reads them back with java.util.zip
+ */
+public class ParallelZipAssemblerTest
+{
+    private File dir;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        this.dir = Files.createTempDirectory("assembler").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly(this.dir);
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntries()
+            throws Exception
+    {
+        final byte[] text = repeat("All work and no play makes Jack a dull boy.\n", 2000);
+        final byte[] image = new byte[50000];
+        new Random(42).nextBytes(image);
+
+        ParallelZipAssembler assembler = this.assembler(3);
+        File zip;
+        try
+        {
+            OutputStream manifest = assembler.openEntry("manifest.xml", "application/xml");
+            assembler.addEntry("resources/a.txt", "text/plain", text.length, (context, out) -> out.write(text));
+            assembler.addEntry("resources/b.png", "image/png", image.length, (context, out) -> out.write(image));
+            manifest.write("<urlset/>".getBytes(StandardCharsets.UTF_8));
+            manifest.close();
+            zip = this.write(assembler);
+        }
+        finally
+        {
+            assembler.close();
+        }
+
+        ZipFile zf = new ZipFile(zip);
+        try
+        {
+            // the open entry comes after the entries added before it was closed
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            assertEquals("resources/a.txt", entries.nextElement().getName());
+            assertEquals("resources/b.png", entries.nextElement().getName());
+            assertEquals("manifest.xml", entries.nextElement().getName());
+            assertFalse(entries.hasMoreElements());
+
+            ZipEntry a = zf.getEntry("resources/a.txt");
+            assertEquals(ZipEntry.DEFLATED, a.getMethod());
+            assertTrue(a.getCompressedSize() < text.length);
+            assertArrayEquals(text, read(zf, a));
+
+            ZipEntry b = zf.getEntry("resources/b.png");
+            assertEquals(ZipEntry.STORED, b.getMethod());
+            assertEquals(image.length, b.getCompressedSize());
+            assertArrayEquals(image, read(zf, b));
+
+            // every entry of an archive has the same time
+            assertEquals(a.getTime(), b.getTime());
+        }
+        finally
+        {
+            zf.close();
+        }
+
+        // reading the entries through their local headers checks their sizes and checksums
+        assertEquals(3, readAll(zip));
+    }
+
+    @Test
+    public void testZip64EntryCount()
+            throws Exception
+    {
+        int count = 70000;
+        ParallelZipAssembler assembler = this.assembler(2);
+        File zip;
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                final byte[] content = ("file " + i).getBytes(StandardCharsets.UTF_8);
+                assembler.addEntry("files/" + i + ".txt", "text/plain", content.length, (context, out) -> out.write(content));
+            }
+            zip = this.write(assembler);
+        }
+        finally
+        {
+            assembler.close();
+        }
+
+        ZipFile zf = new ZipFile(zip);
+        try
+        {
+            assertEquals(count, zf.size());
+            assertEquals("file 0", new String(read(zf, zf.getEntry("files/0.txt")), StandardCharsets.UTF_8));
+            assertEquals("file 69999", new String(read(zf, zf.getEntry("files/69999.txt")), StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            zf.close();
+        }
+        assertEquals(count, readAll(zip));
+    }
+
+    @Test
+    public void testFailingEntryFailsTheArchive()
+            throws Exception
+    {
+        ParallelZipAssembler assembler = this.assembler(2);
+        try
+        {
+            assembler.addEntry("ok.txt", "text/plain", 2, (context, out) -> out.write(new byte[] { 'o', 'k' }));
+            assembler.addEntry("broken.txt", "text/plain", -1, (context, out) -> {
+                throw new IOException("unreadable");
+            });
+            try
+            {
+                this.write(assembler);
+                fail("an archive missing one of its entries was written");
+            }
+            catch (IOException e)
+            {
+                assertTrue(e.getMessage().contains("broken.txt"));
+            }
+        }
+        finally
+        {
+            assembler.close();
+        }
+    }
+
+    /**
+     * @return an assembler keeping its scatter files in the temporary directory, whose workers
+     * have no DSpace context
+     */
+    private ParallelZipAssembler assembler(int threads)
+    {
+        ZipCompressionPolicy policy = new ZipCompressionPolicy(Deflater.DEFAULT_COMPRESSION, 0);
+        policy.setLevel("image/png", ZipCompressionPolicy.STORE);
+        return new ParallelZipAssembler(this.dir, threads, policy, 16)
+        {
+            @Override
+            protected Context createContext()
+            {
+                return null;
+            }
+        };
+    }
+
+    private File write(ParallelZipAssembler assembler)
+            throws IOException
+    {
+        File zip = new File(this.dir, "test.zip");
+        OutputStream out = new FileOutputStream(zip);
+        try
+        {
+            assembler.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+        return zip;
+    }
+
+    private static byte[] read(ZipFile zf, ZipEntry entry)
+            throws IOException
+    {
+        InputStream in = zf.getInputStream(entry);
+        try
+        {
+            return IOUtils.toByteArray(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of entries read
+     */
+    private static int readAll(File zip)
+            throws IOException
+    {
+        int count = 0;
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try
+        {
+            while (in.getNextEntry() != null)
+            {
+                IOUtils.toByteArray(in);
+                count++;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return count;
+    }
+
+    private static byte[] repeat(String s, int times)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++)
+        {
+            sb.append(s);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
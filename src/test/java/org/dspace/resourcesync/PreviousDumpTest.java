@@ -0,0 +1,428 @@
+/**
+ * The contents of this file are subject to the license and copyright
+ * detailed in the LICENSE and NOTICE files at the root of the source
+ * tree
+ */
+package org.dspace.resourcesync;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.dspace.core.Context;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Rebases dumps written through the assembler, copying the files of the unchanged resources from
+ * the previous zip, and reads the result back with java.util.zip
+ */
+public class PreviousDumpTest
+{
+    private static final String BASE = "http://localhost/dspace-resourcesync/resource/";
+
+    // 2020-01-01T00:00:00Z and 2020-02-01T00:00:00Z
+    private static final Date BEFORE = new Date(1577836800000L);
+    private static final Date AFTER = new Date(1580515200000L);
+
+    private File dir;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        this.dir = Files.createTempDirectory("previousdump").toFile();
+    }
+
+    @After
+    public void tearDown()
+    {
+        FileUtils.deleteQuietly(this.dir);
+    }
+
+    @Test
+    public void testRebaseCopiesUnchangedFiles()
+            throws Exception
+    {
+        byte[] image = new byte[20000];
+        new Random(42).nextBytes(image);
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(Resource.bitstream(1, "123_1", "1_a.txt", "text/plain", repeat("first item\n", 500), BEFORE));
+        resources.add(Resource.bitstream(2, "123_1", "2_b.png", "image/png", image, BEFORE));
+        resources.add(Resource.metadata("123_1", repeat("<dc>first</dc>\n", 100), BEFORE));
+        resources.add(Resource.bitstream(3, "123_2", "1_c.txt", "text/plain", repeat("second item\n", 500), BEFORE));
+        resources.add(Resource.metadata("123_2", repeat("<dc>second</dc>\n", 100), BEFORE));
+        File old = this.dump("old.zip", resources, null, null);
+
+        // the second item changes: a new version of its bitstream, and so a new export
+        List<Resource> now = new ArrayList<Resource>(resources.subList(0, 3));
+        now.add(Resource.bitstream(3, "123_2", "1_c.txt", "text/plain", repeat("second item, revised\n", 500), AFTER));
+        now.add(Resource.metadata("123_2", repeat("<dc>second, revised</dc>\n", 100), AFTER));
+
+        PreviousDump previous = PreviousDump.open(Collections.singletonList(old));
+        assertNotNull(previous);
+        List<String> copied = new ArrayList<String>();
+        File rebased;
+        try
+        {
+            rebased = this.dump("new.zip", now, previous, copied);
+        }
+        finally
+        {
+            previous.close();
+        }
+
+        // the files of the first item are copied, still compressed, byte for byte
+        assertEquals(Arrays.asList(now.get(0).name, now.get(1).name, now.get(2).name), copied);
+        for (String name : copied)
+        {
+            assertArrayEquals(rawData(old, name), rawData(rebased, name));
+        }
+
+        // those of the second item are compressed again from their new content
+        assertFalse(Arrays.equals(rawData(old, now.get(3).name), rawData(rebased, now.get(3).name)));
+        assertFalse(Arrays.equals(rawData(old, now.get(4).name), rawData(rebased, now.get(4).name)));
+
+        // reading the entries through their local headers checks their sizes and checksums
+        Map<String, byte[]> contents = readAll(rebased);
+        assertEquals(now.size() + 1, contents.size());
+        for (Resource resource : now)
+        {
+            assertArrayEquals(resource.content, contents.get(resource.name));
+        }
+    }
+
+    @Test
+    public void testChangedChecksumIsNotReused()
+            throws Exception
+    {
+        Resource resource = Resource.bitstream(1, "123_1", "1_a.txt", "text/plain", repeat("content\n", 100), BEFORE);
+        File old = this.dump("old.zip", Collections.singletonList(resource), null, null);
+
+        PreviousDump previous = PreviousDump.open(Collections.singletonList(old));
+        assertNotNull(previous);
+        try
+        {
+            assertNotNull(previous.getUnchanged(resource.loc, BEFORE, "MD5", resource.checksum));
+            // same date, but the content was replaced
+            assertNull(previous.getUnchanged(resource.loc, BEFORE, "MD5", md5(new byte[] { 1 })));
+            assertNull(previous.getUnchanged(resource.loc, AFTER, "MD5", resource.checksum));
+            assertNull(previous.getUnchanged(BASE + "bitstreams/99", BEFORE, "MD5", resource.checksum));
+        }
+        finally
+        {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void testBrokenCentralDirectoryFallsBackToFullRebuild()
+            throws Exception
+    {
+        Resource first = Resource.bitstream(1, "123_1", "1_a.txt", "text/plain", repeat("first\n", 100), BEFORE);
+        Resource second = Resource.bitstream(2, "123_2", "1_b.txt", "text/plain", repeat("second\n", 100), BEFORE);
+        File good = this.dump("part1.zip", Collections.singletonList(first), null, null);
+        File broken = this.dump("part2.zip", Collections.singletonList(second), null, null);
+
+        // overwrite the signature of the first header of the central directory
+        RandomAccessFile raf = new RandomAccessFile(broken, "rw");
+        try
+        {
+            ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            raf.seek(raf.length() - 22);
+            raf.readFully(end.array());
+            assertEquals(0x06054b50, end.getInt(0));
+            raf.seek(end.getInt(16) & 0xffffffffL);
+            raf.writeInt(0);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        // nothing can be reused, so the dump is generated in full
+        assertNull(PreviousDump.open(Collections.singletonList(broken)));
+
+        // a broken part only loses its own files
+        PreviousDump previous = PreviousDump.open(Arrays.asList(good, broken));
+        assertNotNull(previous);
+        try
+        {
+            assertNotNull(previous.getUnchanged(first.loc, BEFORE, "MD5", first.checksum));
+            assertNull(previous.getUnchanged(second.loc, BEFORE, "MD5", second.checksum));
+        }
+        finally
+        {
+            previous.close();
+        }
+    }
+
+    @Test
+    public void testZip64CentralDirectory()
+            throws Exception
+    {
+        // more files than the end of central directory record can count, only one of them listed
+        List<Resource> resources = new ArrayList<Resource>();
+        for (int i = 0; i < 66000; i++)
+        {
+            resources.add(Resource.bitstream(i, "123_" + i, "1_f.txt", "text/plain",
+                    ("file " + i).getBytes(StandardCharsets.UTF_8), BEFORE));
+        }
+        Resource last = resources.get(resources.size() - 1);
+        File old = this.dump("old.zip", resources, null, null, Collections.singletonList(last));
+
+        PreviousDump previous = PreviousDump.open(Collections.singletonList(old));
+        assertNotNull(previous);
+        List<String> copied = new ArrayList<String>();
+        File rebased;
+        try
+        {
+            rebased = this.dump("new.zip", Collections.singletonList(last), previous, copied);
+        }
+        finally
+        {
+            previous.close();
+        }
+        assertEquals(Collections.singletonList(last.name), copied);
+        assertArrayEquals(last.content, readAll(rebased).get(last.name));
+    }
+
+    private File dump(String zipName, List<Resource> resources, PreviousDump previous, List<String> copied)
+            throws IOException
+    {
+        return this.dump(zipName, resources, previous, copied, resources);
+    }
+
+    /**
+     * Write a dump through the assembler, copying the files of the resources which have not changed
+     * from the previous dump, as a rebase does
+     *
+     * @param listed    the resources to list in the manifest
+     */
+    private File dump(String zipName, List<Resource> resources, PreviousDump previous, List<String> copied,
+                      List<Resource> listed)
+            throws IOException
+    {
+        ZipCompressionPolicy policy = new ZipCompressionPolicy(Deflater.DEFAULT_COMPRESSION, 0);
+        policy.setLevel("image/png", ZipCompressionPolicy.STORE);
+        ParallelZipAssembler assembler = new ParallelZipAssembler(this.dir, 2, policy, 16)
+        {
+            @Override
+            protected Context createContext()
+            {
+                return null;
+            }
+        };
+        try
+        {
+            for (final Resource resource : resources)
+            {
+                PreviousDump.RawEntry raw = previous == null ? null :
+                        previous.getUnchanged(resource.loc, resource.lastModified,
+                                resource.checksum == null ? null : "MD5", resource.checksum);
+                if (raw != null)
+                {
+                    assembler.addRawEntry(resource.name, raw);
+                    copied.add(resource.name);
+                }
+                else
+                {
+                    assembler.addEntry(resource.name, resource.mimeType, resource.content.length,
+                            (context, out) -> out.write(resource.content));
+                }
+            }
+
+            StringBuilder manifest = new StringBuilder();
+            manifest.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            manifest.append("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" ");
+            manifest.append("xmlns:rs=\"http://www.openarchives.org/rs/terms/\">\n");
+            manifest.append("<rs:md capability=\"resourcedump-manifest\" at=\"").append(format(AFTER)).append("\"/>\n");
+            for (Resource resource : listed)
+            {
+                manifest.append(resource.toXml());
+            }
+            manifest.append("</urlset>\n");
+            final byte[] xml = manifest.toString().getBytes(StandardCharsets.UTF_8);
+            assembler.addEntry(FileNames.resourceDumpManifest, "application/xml", xml.length, (context, out) -> out.write(xml));
+
+            File zip = new File(this.dir, zipName);
+            OutputStream out = new FileOutputStream(zip);
+            try
+            {
+                assembler.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
+            return zip;
+        }
+        finally
+        {
+            assembler.close();
+        }
+    }
+
+    /**
+     * @return the compressed data of the entry as it is stored in the zip, found by walking the
+     * local headers
+     */
+    private static byte[] rawData(File zip, String name)
+            throws IOException
+    {
+        byte[] bytes = FileUtils.readFileToByteArray(zip);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 0;
+        while (buffer.getInt(offset) == 0x04034b50)
+        {
+            int compressedSize = buffer.getInt(offset + 18);
+            int nameLength = buffer.getShort(offset + 26) & 0xffff;
+            int extraLength = buffer.getShort(offset + 28) & 0xffff;
+            int data = offset + 30 + nameLength + extraLength;
+            if (name.equals(new String(bytes, offset + 30, nameLength, StandardCharsets.UTF_8)))
+            {
+                return Arrays.copyOfRange(bytes, data, data + compressedSize);
+            }
+            offset = data + compressedSize;
+        }
+        fail(name + " is not in " + zip);
+        return null;
+    }
+
+    /**
+     * @return the content of every entry, by name
+     */
+    private static Map<String, byte[]> readAll(File zip)
+            throws IOException
+    {
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try
+        {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null)
+            {
+                assertTrue(contents.put(entry.getName(), IOUtils.toByteArray(in)) == null);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return contents;
+    }
+
+    private static byte[] repeat(String s, int times)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++)
+        {
+            sb.append(s);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String format(Date date)
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf.format(date);
+    }
+
+    private static String md5(byte[] content)
+            throws NoSuchAlgorithmException
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content))
+        {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A bitstream or metadata export, with its entry in the manifest and its file in the zip
+     */
+    private static class Resource
+    {
+        private String loc;
+        private String path;
+        private String name;
+        private String mimeType;
+        private byte[] content;
+        private Date lastModified;
+        private String checksum;
+
+        private static Resource bitstream(int id, String item, String file, String mimeType, byte[] content,
+                                          Date lastModified)
+                throws NoSuchAlgorithmException
+        {
+            Resource resource = new Resource(BASE + "bitstreams/" + id, item, file, mimeType, content, lastModified);
+            resource.checksum = md5(content);
+            return resource;
+        }
+
+        private static Resource metadata(String item, byte[] content, Date lastModified)
+        {
+            return new Resource(BASE + item.replace("_", "/") + "/qdc", item, "qdc", "application/xml", content,
+                    lastModified);
+        }
+
+        private Resource(String loc, String item, String file, String mimeType, byte[] content, Date lastModified)
+        {
+            this.loc = loc;
+            this.path = "/" + FileNames.dumpResourcesDir + "/" + item + "/" + file;
+            this.name = this.path.replace("/", File.separator);
+            this.mimeType = mimeType;
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+        private String toXml()
+        {
+            StringBuilder xml = new StringBuilder("<url><loc>").append(this.loc).append("</loc>");
+            xml.append("<lastmod>").append(format(this.lastModified)).append("</lastmod>");
+            xml.append("<rs:md");
+            if (this.checksum != null)
+            {
+                xml.append(" hash=\"md5:").append(this.checksum).append("\"");
+            }
+            xml.append(" length=\"").append(this.content.length).append("\" type=\"").append(this.mimeType);
+            xml.append("\" path=\"").append(this.path).append("\"/></url>\n");
+            return xml.toString();
+        }
+    }
+}